@@ -0,0 +1,417 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The index of entries in a composite file, kept small enough for archives
+ * with millions of entries. Each entry is a slot number. Its offsets, size
+ * and modification time are held in arrays of longs. Its name is held as
+ * UTF-8 in one shared byte pool. Names are found through an open-addressing
+ * hash table of slot numbers. That comes to about 56 bytes per entry plus
+ * the bytes of the name, against several hundred for a HashMap of objects
+ * that hold a TarArchiveEntry.
+ *
+ * <p>Putting a name which is already present overwrites its slot.
+ * Removing a name marks its slot deleted, with a position of -1, and
+ * putting the name again brings the slot back. Deleted slots and their
+ * names stay until pack() is called, which renumbers the slots. Not
+ * thread safe - CompositeFile synchronizes.</p>
+ */
+class ComponentIndex
+{
+    private static final int INITIAL_CAPACITY = 64;
+    // deleted slots worth packing, as long as they outnumber live ones
+    private static final int PACK_THRESHOLD = 1024;
+
+    private int count = 0;
+    private int live = 0;
+    private long[] pos;
+    private long[] datapos;
+    private long[] end;
+    private long[] size;
+    private long[] mtime;
+    private int[] hash;
+    // names are added in slot order so each ends where the next starts
+    private int[] nameoff;
+
+    private byte[] pool;
+    private int poollength = 0;
+
+    // slot number + 1, zero means empty, length is a power of two
+    private int[] table;
+
+    ComponentIndex()
+    {
+        clear();
+    }
+
+    /**
+     * Remove all entries and release the space they used.
+     */
+    final void clear()
+    {
+        count = 0;
+        live = 0;
+        pos = new long[INITIAL_CAPACITY];
+        datapos = new long[INITIAL_CAPACITY];
+        end = new long[INITIAL_CAPACITY];
+        size = new long[INITIAL_CAPACITY];
+        mtime = new long[INITIAL_CAPACITY];
+        hash = new int[INITIAL_CAPACITY];
+        nameoff = new int[INITIAL_CAPACITY];
+        pool = new byte[INITIAL_CAPACITY * 32];
+        poollength = 0;
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * @return Number of entries, not counting deleted ones.
+     */
+    int size()
+    {
+        return live;
+    }
+
+    /**
+     * @return Number of slots, including deleted ones. Slots are numbered
+     * from zero up to this.
+     */
+    int slots()
+    {
+        return count;
+    }
+
+    boolean isDeleted( int slot )
+    {
+        return pos[slot] < 0;
+    }
+
+    /**
+     * @return True if so many slots are deleted that pack() is worth it.
+     */
+    boolean isSparse()
+    {
+        return count - live > PACK_THRESHOLD && count - live > live;
+    }
+
+    /**
+     * Drop the deleted slots and their names, renumbering the rest. Slot
+     * numbers held from before are no longer valid.
+     */
+    void pack()
+    {
+        if ( live == count )
+            return;
+        int capacity = Math.max( INITIAL_CAPACITY, live + (live >> 1) );
+        long[] oldpos = pos, olddatapos = datapos, oldend = end, oldsize = size, oldmtime = mtime;
+        int[] oldhash = hash, oldnameoff = nameoff;
+        byte[] oldpool = pool;
+        int oldcount = count, oldpoollength = poollength;
+        pos = new long[capacity];
+        datapos = new long[capacity];
+        end = new long[capacity];
+        size = new long[capacity];
+        mtime = new long[capacity];
+        hash = new int[capacity];
+        nameoff = new int[capacity];
+        pool = new byte[Math.max( INITIAL_CAPACITY * 32, oldpoollength )];
+        poollength = 0;
+        count = 0;
+        int from, to;
+        for ( int slot=0; slot<oldcount; slot++ )
+        {
+            if ( oldpos[slot] < 0 )
+                continue;
+            from = oldnameoff[slot];
+            to = slot + 1 < oldcount ? oldnameoff[slot+1] : oldpoollength;
+            System.arraycopy( oldpool, from, pool, poollength, to - from );
+            nameoff[count] = poollength;
+            poollength += to - from;
+            pos[count] = oldpos[slot];
+            datapos[count] = olddatapos[slot];
+            end[count] = oldend[slot];
+            size[count] = oldsize[slot];
+            mtime[count] = oldmtime[slot];
+            hash[count] = oldhash[slot];
+            count++;
+        }
+        pool = Arrays.copyOf( pool, Math.max( INITIAL_CAPACITY * 32, poollength + (poollength >> 1) ) );
+        int length = INITIAL_CAPACITY * 2;
+        while ( length < count * 2 )
+            length *= 2;
+        rehash( length );
+    }
+
+    /**
+     * Find the slot of a named entry.
+     *
+     * @param name
+     * @return The slot or -1 if there is no such entry.
+     */
+    int find( String name )
+    {
+        int slot = lookup( name );
+        return slot < 0 || isDeleted( slot ) ? -1 : slot;
+    }
+
+    /**
+     * Find the slot of a name whether or not it has been deleted.
+     */
+    private int lookup( String name )
+    {
+        int h = name.hashCode();
+        int mask = table.length - 1;
+        int slot;
+        for ( int t = mix( h ) & mask; (slot = table[t] - 1) >= 0; t = (t + 1) & mask )
+            if ( hash[slot] == h && nameEquals( slot, name ) )
+                return slot;
+        return -1;
+    }
+
+    /**
+     * Add an entry or overwrite the one with the same name.
+     *
+     * @return The slot.
+     */
+    int put( String name, long pos, long datapos, long end, long size, long mtime )
+    {
+        int slot = lookup( name );
+        if ( slot < 0 )
+        {
+            if ( count == this.pos.length )
+                grow();
+            if ( (count + 1) * 2 > table.length )
+                rehash( table.length * 2 );
+            slot = count++;
+            byte[] b = name.getBytes( StandardCharsets.UTF_8 );
+            if ( poollength + b.length > pool.length )
+                pool = Arrays.copyOf( pool, Math.max( poollength + b.length, pool.length + (pool.length >> 1) ) );
+            System.arraycopy( b, 0, pool, poollength, b.length );
+            nameoff[slot] = poollength;
+            poollength += b.length;
+            hash[slot] = name.hashCode();
+            insert( slot );
+            live++;
+        }
+        else if ( isDeleted( slot ) )
+            live++;
+        this.pos[slot] = pos;
+        this.datapos[slot] = datapos;
+        this.end[slot] = end;
+        this.size[slot] = size;
+        this.mtime[slot] = mtime;
+        return slot;
+    }
+
+    /**
+     * Add an entry or overwrite the one with the same name.
+     *
+     * @return The slot.
+     */
+    int put( CompositeFile.ComponentEntry entry )
+    {
+        return put( entry.name, entry.pos, entry.datapos, entry.end, entry.size, entry.mtime );
+    }
+
+    /**
+     * Mark an entry deleted.
+     *
+     * @param name
+     * @return The slot it had or -1 if there is no such entry.
+     */
+    int remove( String name )
+    {
+        int slot = find( name );
+        if ( slot >= 0 )
+        {
+            pos[slot] = -1L;
+            datapos[slot] = -1L;
+            end[slot] = -1L;
+            size[slot] = 0L;
+            live--;
+        }
+        return slot;
+    }
+
+    /**
+     * Record that the data of an entry has been moved.
+     */
+    void move( int slot, long pos, long datapos, long end )
+    {
+        this.pos[slot] = pos;
+        this.datapos[slot] = datapos;
+        this.end[slot] = end;
+    }
+
+    /**
+     * List the entries which are at or after a file offset in the order
+     * they are in the file.
+     *
+     * @param from File offset.
+     * @return Slots.
+     */
+    int[] slotsInFileOrder( long from )
+    {
+        int n = 0;
+        for ( int slot=0; slot<count; slot++ )
+            if ( pos[slot] >= from )
+                n++;
+        // entries never share a position so each finds its own place
+        long[] sorted = new long[n];
+        n = 0;
+        for ( int slot=0; slot<count; slot++ )
+            if ( pos[slot] >= from )
+                sorted[n++] = pos[slot];
+        Arrays.sort( sorted );
+        int[] slots = new int[n];
+        for ( int slot=0; slot<count; slot++ )
+            if ( pos[slot] >= from )
+                slots[Arrays.binarySearch( sorted, pos[slot] )] = slot;
+        return slots;
+    }
+
+    /**
+     * Copy an entry out of the index.
+     *
+     * @param name
+     * @return A new ComponentEntry or null if there is no such entry.
+     */
+    CompositeFile.ComponentEntry get( String name )
+    {
+        int slot = find( name );
+        return slot < 0 ? null : get( slot );
+    }
+
+    /**
+     * Copy an entry out of the index.
+     *
+     * @param slot
+     * @return A new ComponentEntry.
+     */
+    CompositeFile.ComponentEntry get( int slot )
+    {
+        CompositeFile.ComponentEntry entry = new CompositeFile.ComponentEntry( getName( slot ), pos[slot] );
+        entry.datapos = datapos[slot];
+        entry.end = end[slot];
+        entry.size = size[slot];
+        entry.mtime = mtime[slot];
+        return entry;
+    }
+
+    String getName( int slot )
+    {
+        return new String( pool, nameoff[slot], nameLength( slot ), StandardCharsets.UTF_8 );
+    }
+
+    long getPos( int slot )
+    {
+        return pos[slot];
+    }
+
+    long getDataPos( int slot )
+    {
+        return datapos[slot];
+    }
+
+    long getEnd( int slot )
+    {
+        return end[slot];
+    }
+
+    long getSize( int slot )
+    {
+        return size[slot];
+    }
+
+    long getModTime( int slot )
+    {
+        return mtime[slot];
+    }
+
+    /**
+     * Compare the stored name with a string without decoding the stored
+     * name when it is plain ASCII.
+     */
+    private boolean nameEquals( int slot, String name )
+    {
+        int off = nameoff[slot];
+        int len = nameLength( slot );
+        if ( name.length() != len )
+        {
+            // a non ASCII name has more bytes than chars
+            if ( name.length() > len )
+                return false;
+            return getName( slot ).equals( name );
+        }
+        char c;
+        for ( int i=0; i<len; i++ )
+        {
+            c = name.charAt( i );
+            if ( c >= 0x80 )
+                return getName( slot ).equals( name );
+            if ( pool[off+i] != (byte)c )
+                return false;
+        }
+        return true;
+    }
+
+    private int nameLength( int slot )
+    {
+        return (slot + 1 < count ? nameoff[slot+1] : poollength) - nameoff[slot];
+    }
+
+    private void insert( int slot )
+    {
+        int mask = table.length - 1;
+        int t = mix( hash[slot] ) & mask;
+        while ( table[t] != 0 )
+            t = (t + 1) & mask;
+        table[t] = slot + 1;
+    }
+
+    private void rehash( int length )
+    {
+        table = new int[length];
+        for ( int slot=0; slot<count; slot++ )
+            insert( slot );
+    }
+
+    private void grow()
+    {
+        int capacity = pos.length + (pos.length >> 1);
+        pos = Arrays.copyOf( pos, capacity );
+        datapos = Arrays.copyOf( datapos, capacity );
+        end = Arrays.copyOf( end, capacity );
+        size = Arrays.copyOf( size, capacity );
+        mtime = Arrays.copyOf( mtime, capacity );
+        hash = Arrays.copyOf( hash, capacity );
+        nameoff = Arrays.copyOf( nameoff, capacity );
+    }
+
+    /**
+     * String hash codes of similar names differ mostly in the low bits,
+     * spread them before masking.
+     */
+    private static int mix( int h )
+    {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -17,17 +17,46 @@
 package org.qyouti.compositefile;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
 
 
 /**
@@ -38,8 +67,69 @@ import org.apache.commons.compress.archivers.tar.TarConstants;
  */
 public class CompositeFile
 {
+    /**
+     * Every write to the file is synchronous. This is the default.
+     */
+    public static final int SYNC_EACH_WRITE = 0;
+    
+    /**
+     * Writes are left to the operating system until an entry is
+     * completed, then the file is forced to the device.
+     */
+    public static final int SYNC_ON_ENTRY_CLOSE = 1;
+    
+    /**
+     * Entries completed within a short time window share one force
+     * of the file to the device, done by a background thread.
+     */
+    public static final int GROUP_COMMIT = 2;
+    
+    /**
+     * The operating system decides when data reaches the device. Entries
+     * are only known to be durable after flush() or close().
+     */
+    public static final int OS_MANAGED = 3;
+    
+    /**
+     * No index checkpoint is written when the archive is closed.
+     */
+    public static final int CHECKPOINT_NONE = 0;
+    
+    /**
+     * The index is saved as the last entry of the archive when it is closed.
+     */
+    public static final int CHECKPOINT_IN_ARCHIVE = 1;
+    
+    /**
+     * The index is saved in a sidecar file next to the archive when it is closed.
+     */
+    public static final int CHECKPOINT_SIDECAR = 2;
+    
     static final HashMap<String,CompositeFile> cache = new HashMap<>();
     static byte[] zeroblock = new byte[512];
+    static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_WRITE_CHUNK_SIZE = 256 * 1024;
+    static final int DEFAULT_STAGING_SIZE = 64 * 1024;
+    static final long DEFAULT_GROUP_COMMIT_MILLIS = 10L;
+    static final long DEFAULT_GROUP_COMMIT_BYTES = 4L * 1024L * 1024L;
+    // how far back from the end of file to look for an index checkpoint
+    static final int CHECKPOINT_PROBE_SIZE = 64 * 512;
+    // memory mappings start at multiples of this and are up to twice as long
+    static final long MAP_WINDOW_SIZE = 64L * 1024L * 1024L;
+    // entries are moved by compaction in pieces of this size
+    static final int COMPACT_CHUNK_SIZE = 1024 * 1024;
+    // entry names starting with this are for the use of this class
+    static final String RESERVED_PREFIX = ".compositefile/";
+    // filler entries which cover space left free by compaction
+    static final String FREE_NAME = RESERVED_PREFIX + "free";
+    // tombstone entries whose data is the name of a deleted entry
+    static final String DELETED_NAME = RESERVED_PREFIX + "deleted";
+    static final int MAX_TOMBSTONE_SIZE = 64 * 1024;
+    static final int MAX_DATA_ALIGNMENT = 1024 * 1024;
+    // stale data up to this size after the end is zeroed rather than cut off
+    static final int MAX_ZEROED_TAIL = 1024 * 1024;
+    // filler entries which hold space for the entry in front to grow into
+    static final String RESERVE_NAME = RESERVED_PREFIX + "reserve";
     
     /**
      * Retrieves an active composite file from a cache or makes a
@@ -70,15 +160,56 @@ public class CompositeFile
     private final String canonical;
     private final File file;
     private final RandomAccessFile raf;
+    private final FileChannel channel;
     private final FileLock lock;
     private final boolean exists;
-    private InputStream currentinputstream = null;
-    private OutputStream currentoutputstream = null;
+    // streams handed out by getInputStream() which are not closed yet
+    private final HashSet<RandomInputStream> openreaders = new HashSet<>();
+    // other ranges of the file being read without holding the lock
+    private final HashSet<ReadPin> pins = new HashSet<>();
+    private TarOutputWrapper currentoutputstream = null;
+    private Batch currentbatch = null;
+    private AppendOutputStream currentappend = null;
+    // an entry whose data is being transferred without holding the lock
+    private ComponentEntry currenttransfer = null;
+    // compaction has the end of the archive and writers wait for it
+    private boolean compacting = false;
+    private boolean compactionrunning = false;
+    // staged writers take a ticket when they close and append in that order
+    private long nextticket = 0L;
+    private long servingticket = 0L;
+    private final HashSet<Long> abandonedtickets = new HashSet<>();
     private SeekableTarArchiveOutputStream tos;
-    private ComponentEntry newentry;
+    private RandomOutputStream ros;
         
-    HashMap<String,ComponentEntry> componentmap = new HashMap<>();
+    final ComponentIndex componentindex = new ComponentIndex();
+    // space before nextnewentry that holds nothing current
+    private final DeadSpace deadspace = new DeadSpace();
+    private final TarHeaderPatcher headerpatcher = new TarHeaderPatcher( this );
     private long nextnewentry=0L;
+    private volatile int readbuffersize = DEFAULT_READ_BUFFER_SIZE;
+    private int writechunksize = DEFAULT_WRITE_CHUNK_SIZE;
+    private byte[] writechunk = null;
+    private int stagingsize = DEFAULT_STAGING_SIZE;
+    private byte[] staging = null;
+    private final AtomicLong channelreads = new AtomicLong();
+    private volatile int durability = SYNC_EACH_WRITE;
+    private final GroupCommitter committer;
+    private int checkpointmode = CHECKPOINT_NONE;
+    private volatile boolean memorymapped = false;
+    private boolean deferredtrailer = false;
+    private boolean overwriteinplace = false;
+    private int dataalignment = 0;
+    // the file is extended this much at a time ahead of the data
+    private volatile long preallocation = 0L;
+    // length the file has been extended to, beyond the data it is zeros
+    private volatile long allocatedlength;
+    // file offset just past the last byte written
+    private final AtomicLong dataend = new AtomicLong();
+    // true if the end of archive records are not yet at nextnewentry
+    private boolean trailerpending = false;
+    // read only mappings of the file keyed by window number
+    private final HashMap<Long,MappedByteBuffer> mappings = new HashMap<>();
     
     /**
      * Constructs a composite file based on the canonical path to
@@ -94,15 +225,23 @@ public class CompositeFile
         this.canonical = canonical;
         this.file = file;
         exists=file.exists();
-        raf = new RandomAccessFile( file, "rwd" );
-        // now the file will exist - if 'exists == true' it will be empty
-        lock = raf.getChannel().lock();
+        // durability is handled explicitly so the file is not opened in "rwd" mode
+        raf = new RandomAccessFile( file, "rw" );
+        channel = raf.getChannel();
+        committer = new GroupCommitter( channel, canonical,
+                DEFAULT_GROUP_COMMIT_MILLIS, DEFAULT_GROUP_COMMIT_BYTES,
+                () -> { synchronized ( this ) { writeTrailer(); } } );
+        // now the file will exist - if 'exists == false' it will be empty
+        lock = channel.lock();
         if ( !exists )
         {
-            raf.write( zeroblock );
-            raf.write( zeroblock );
-            raf.seek(0);
+            RandomOutputStream eof = new RandomOutputStream( 0L, null );
+            eof.write( zeroblock );
+            eof.write( zeroblock );
+            eof.close();
         }
+        allocatedlength = raf.length();
+        dataend.set( allocatedlength );
         
         readComponentMap();
     }
@@ -111,59 +250,746 @@ public class CompositeFile
   {
     return canonical;
   }
+
+  /**
+   * Chooses when data written to the archive is forced to the storage
+   * device. One of SYNC_EACH_WRITE, SYNC_ON_ENTRY_CLOSE, GROUP_COMMIT or
+   * OS_MANAGED. Whatever the policy, the future of each completed entry
+   * completes when the entry is known to be durable. Entries waiting for
+   * the same force share one future, so callers must not complete it.
+   * 
+   * @param durability The durability policy.
+   * @throws IOException 
+   */
+  public synchronized void setDurability( int durability ) throws IOException
+  {
+    if ( durability < SYNC_EACH_WRITE || durability > OS_MANAGED )
+      throw new IllegalArgumentException( "Unknown durability policy " + durability );
+    // anything already waiting should not be left behind by the change
+    if ( durability != this.durability )
+      committer.flush();
+    this.durability = durability;
+  }
+
+  public int getDurability()
+  {
+    return durability;
+  }
+
+  /**
+   * Chooses how the index is saved when the archive is closed so that it
+   * can be opened again quickly. One of CHECKPOINT_NONE, CHECKPOINT_IN_ARCHIVE
+   * or CHECKPOINT_SIDECAR. An in-archive checkpoint is an ordinary tar entry
+   * named .compositefile/index and is overwritten by the next new entry. A
+   * sidecar checkpoint is kept in a file with ".index" added to the name of
+   * the archive. Whichever is found is checked against the archive when it
+   * is opened and only entries added after it are read from the archive.
+   * 
+   * @param checkpointmode 
+   */
+  public synchronized void setIndexCheckpoint( int checkpointmode )
+  {
+    if ( checkpointmode < CHECKPOINT_NONE || checkpointmode > CHECKPOINT_SIDECAR )
+      throw new IllegalArgumentException( "Unknown index checkpoint mode " + checkpointmode );
+    this.checkpointmode = checkpointmode;
+  }
+
+  public synchronized int getIndexCheckpoint()
+  {
+    return checkpointmode;
+  }
+
+  /**
+   * Sets the window used by the GROUP_COMMIT policy. The file is forced
+   * once the earliest waiting entry has waited the given time or once
+   * the given amount of data has been written, whichever comes first.
+   * 
+   * @param millis Longest wait in milliseconds.
+   * @param bytes Amount of data which triggers a force straight away.
+   */
+  public void setGroupCommitWindow( long millis, long bytes )
+  {
+    committer.setWindow( millis, bytes );
+  }
+
+  /**
+   * Forces everything written so far to the storage device and completes
+   * the futures of all entries that were waiting for that.
+   * 
+   * @throws IOException 
+   */
+  public void flush() throws IOException
+  {
+    // the committer writes the trailer before it forces
+    committer.flush();
+  }
+
+  /**
+   * Chooses whether the end of archive records are written after every
+   * entry or only when they are needed. When deferred they are written
+   * by flush() and close(), after each entry with the SYNC_ON_ENTRY_CLOSE
+   * policy and before each group commit, but not while an entry is being
+   * written. Anything left after the end of the archive, such as an old
+   * index checkpoint, is cleared first so that a crash cannot leave
+   * stale records where the next header is expected.
+   * In between the file is not a complete tar archive. If the archive
+   * is not closed cleanly the records are put back the next time it is
+   * opened.
+   * 
+   * @param deferredtrailer True to defer the end of archive records.
+   * @throws IOException 
+   */
+  public synchronized void setDeferredTrailer( boolean deferredtrailer ) throws IOException
+  {
+    this.deferredtrailer = deferredtrailer;
+    if ( !deferredtrailer )
+      writeTrailer();
+    else if ( !isWriting() && dataend.get() > nextnewentry + 1024 )
+    {
+      // the next entry may not cover all of it
+      trailerpending = true;
+      writeTrailer();
+      truncate( nextnewentry + 1024 );
+    }
+  }
+
+  public synchronized boolean isDeferredTrailer()
+  {
+    return deferredtrailer;
+  }
+
+  /**
+   * Chooses whether a replacement entry is put in the space of the entry
+   * it replaces when it fits, so that archives of entries which are
+   * rewritten over and over stay the same size. The replacement is still
+   * written at the end of the archive first and then copied into place,
+   * so the data is written twice. It goes at the end as usual if the old
+   * entry is being read or compacted. Does not apply to batches. The file
+   * is forced before and after the copy whatever the durability policy,
+   * so after a crash either the old or the new entry is found.
+   * 
+   * Only entries whose header is a single record can be swapped, so an
+   * entry with data alignment padding, a long name or other extended
+   * header fields is never overwritten in place and neither is one that
+   * would need them. With an alignment set that is most entries.
+   * 
+   * Views from getByteBuffer() are not protected. A view of the old entry
+   * may show the data of the replacement once it has been copied in.
+   * 
+   * @param overwriteinplace True to overwrite in place.
+   */
+  public synchronized void setOverwriteInPlace( boolean overwriteinplace )
+  {
+    this.overwriteinplace = overwriteinplace;
+  }
+
+  public synchronized boolean isOverwriteInPlace()
+  {
+    return overwriteinplace;
+  }
+
+  /**
+   * Makes the data of entries written from now on start at a multiple of
+   * the given alignment in the file, for example 4096 so that entries
+   * can be mapped or read with direct I/O a page at a time. Tar only
+   * aligns data to 512 bytes so entries that need it are given a PAX
+   * extended header holding a comment of the right length, which other
+   * tar programs ignore. Compaction keeps entries at the same alignment,
+   * so gaps it leaves in front of moved entries count as dead bytes.
+   * Entries given padding are not overwritten in place.
+   * 
+   * @param dataalignment A power of two multiple of 512 up to 1MiB, or
+   * zero for no alignment beyond 512.
+   */
+  public synchronized void setDataAlignment( int dataalignment )
+  {
+    if ( dataalignment < 0 || dataalignment > MAX_DATA_ALIGNMENT || dataalignment % 512 != 0
+         || Integer.bitCount( dataalignment ) > 1 )
+      throw new IllegalArgumentException( "Data alignment must be a power of two multiple of 512 up to " + MAX_DATA_ALIGNMENT );
+    this.dataalignment = dataalignment;
+  }
+
+  public synchronized int getDataAlignment()
+  {
+    return dataalignment;
+  }
+
+  /**
+   * Makes the file grow in extents of the given size instead of a little
+   * with every entry, so the file system updates the length of the file
+   * once per extent rather than on every write and force. The space after
+   * the end of archive records is zeros, which is still a valid tar file,
+   * and is cut off when the archive is closed, or when it is opened again
+   * after a crash. The extent is reserved by setting the length of the
+   * file, so on most file systems it is sparse and no blocks are allocated
+   * in advance - only the updates to the length are saved.
+   * 
+   * <p>Because unwritten space reads as zeros, the first header record of
+   * each entry is written after its data, so that a crash part way through
+   * leaves the end of archive where the entry starts.</p>
+   * 
+   * @param extent Bytes to extend the file by, for example 64MiB, or
+   * zero to extend it only as far as each write needs.
+   */
+  public synchronized void setPreallocation( long extent )
+  {
+    if ( extent < 0L || extent % 512 != 0 )
+      throw new IllegalArgumentException( "Preallocation must be a multiple of 512 bytes" );
+    this.preallocation = extent;
+  }
+
+  public long getPreallocation()
+  {
+    return preallocation;
+  }
+
+  /**
+   * Write the end of archive records if they are pending and no entry
+   * is being written.
+   * 
+   * @throws IOException 
+   */
+  private void writeTrailer() throws IOException
+  {
+    if ( !trailerpending || isWriting() )
+      return;
+    RandomOutputStream eof = new RandomOutputStream( nextnewentry, null );
+    eof.write( zeroblock );
+    eof.write( zeroblock );
+    eof.close();
+    trailerpending = false;
+  }
+
+  /**
+   * Called when a new entry is complete and visible.
+   * 
+   * @param bytes The number of bytes written to the file for the entry.
+   * @return A future which completes when the entry is durable.
+   * @throws IOException 
+   */
+  private CompletableFuture<Void> commitEntry( long bytes ) throws IOException
+  {
+    switch ( durability )
+    {
+      case SYNC_EACH_WRITE:
+        return CompletableFuture.completedFuture( null );
+      case SYNC_ON_ENTRY_CLOSE:
+        writeTrailer();
+        channel.force( false );
+        return CompletableFuture.completedFuture( null );
+      case GROUP_COMMIT:
+        return committer.add( bytes, true );
+      default:
+        return committer.add( bytes, false );
+    }
+  }
+
+  /**
+   * Sets the size of the block buffer used by each input stream. Input
+   * streams read whole blocks from the file and never read past the end
+   * of the entry they belong to. Zero turns off buffering so every read
+   * goes straight to the file. Only affects streams opened afterwards.
+   * 
+   * @param readbuffersize Size in bytes, typically 64KiB to 1MiB.
+   */
+  public void setReadBufferSize( int readbuffersize )
+  {
+    if ( readbuffersize < 0 )
+      throw new IllegalArgumentException( "Read buffer size cannot be negative." );
+    this.readbuffersize = readbuffersize;
+  }
+
+  public int getReadBufferSize()
+  {
+    return readbuffersize;
+  }
+
+  /**
+   * Sets the size of the chunks in which entry data is written to the
+   * file. Tar records are gathered in memory and written in chunks which
+   * line up with multiples of the chunk size in the file, so far fewer
+   * (synchronous) writes are made. The layout of the tar is not affected.
+   * Zero writes every record as soon as it is complete. Takes effect from
+   * the next entry.
+   * 
+   * @param writechunksize Size in bytes, a multiple of 512.
+   */
+  public synchronized void setWriteChunkSize( int writechunksize )
+  {
+    if ( writechunksize < 0 || writechunksize % 512 != 0 )
+      throw new IllegalArgumentException( "Write chunk size must be a multiple of 512 bytes." );
+    this.writechunksize = writechunksize;
+  }
+
+  public synchronized int getWriteChunkSize()
+  {
+    return writechunksize;
+  }
+
+  /**
+   * Sets how much data of an entry of unknown size is held in memory
+   * before anything is written. An entry that is complete within this
+   * size is written in one pass with the right size in its header. A
+   * bigger entry is started with a provisional header which is corrected
+   * when it is closed. Zero starts every entry straight away. Takes effect
+   * from the next entry.
+   * 
+   * @param stagingsize Size in bytes.
+   */
+  public synchronized void setStagingSize( int stagingsize )
+  {
+    if ( stagingsize < 0 )
+      throw new IllegalArgumentException( "Staging size cannot be negative." );
+    this.stagingsize = stagingsize;
+  }
+
+  public synchronized int getStagingSize()
+  {
+    return stagingsize;
+  }
+
+  /**
+   * Get the buffer used to stage entries of unknown size. There is only
+   * one writer at a time so the same buffer is reused for every entry.
+   * 
+   * @return The buffer or null if entries should not be staged.
+   */
+  private byte[] getStagingBuffer()
+  {
+    if ( stagingsize == 0 )
+      return null;
+    if ( staging == null || staging.length != stagingsize )
+      staging = new byte[stagingsize];
+    return staging;
+  }
+
+  /**
+   * Get the buffer used to coalesce writes. There is only one writer at a
+   * time so the same buffer is reused for every entry.
+   * 
+   * @return The buffer or null if writes should not be coalesced.
+   */
+  private byte[] getWriteChunk()
+  {
+    if ( writechunksize == 0 )
+      return null;
+    if ( writechunk == null || writechunk.length != writechunksize )
+      writechunk = new byte[writechunksize];
+    return writechunk;
+  }
+
+  /**
+   * How many read operations have been made on the underlying file
+   * since it was opened. Useful to measure the effect of buffering.
+   * 
+   * @return Number of read calls made on the file channel.
+   */
+  public long getChannelReadCount()
+  {
+    return channelreads.get();
+  }
+
+  /**
+   * Switches memory mapped reading on or off. When it is on, entries are
+   * read through read only mappings of the archive instead of reads of
+   * the file, so data is not copied through heap buffers and hot entries
+   * come straight from the operating system's page cache. Best for
+   * archives that are mostly read. getByteBuffer() always uses mappings.
+   * 
+   * @param memorymapped True to read entries through memory mappings.
+   */
+  public void setMemoryMapped( boolean memorymapped )
+  {
+    this.memorymapped = memorymapped;
+  }
+
+  public boolean isMemoryMapped()
+  {
+    return memorymapped;
+  }
     
     
     
     /**
      * Closes the underlying RandomAccessFile and removes this
-     * from the cache.
+     * from the cache. The file is closed and its lock released even if
+     * the checkpoint or the trailer cannot be written, in which case the
+     * first exception is thrown afterwards.
      * 
      * @throws IOException 
      */
     public void close() throws IOException
     {
-        synchronized ( this )
+        IOException failure = null;
+        try
+        {
+            synchronized ( this )
+            {
+                writeCheckpoint();
+                writeTrailer();
+                // space that was preallocated and not used
+                if ( allocatedlength > dataend.get() )
+                    raf.setLength( dataend.get() );
+            }
+        }
+        catch ( IOException ex )
         {
-            lock.release();
-            raf.close();
+            failure = ex;
         }
-        synchronized ( cache )
+        finally
         {
-            cache.remove( canonical );
+            try
+            {
+                // outside the lock because the committer's thread may be waiting for it
+                committer.close();
+            }
+            catch ( IOException ex )
+            {
+                failure = first( failure, ex );
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    try
+                    {
+                        lock.release();
+                    }
+                    catch ( IOException ex )
+                    {
+                        failure = first( failure, ex );
+                    }
+                    try
+                    {
+                        raf.close();
+                    }
+                    catch ( IOException ex )
+                    {
+                        failure = first( failure, ex );
+                    }
+                }
+                synchronized ( mappings )
+                {
+                    // the mappings themselves go when the buffers are garbage collected
+                    mappings.clear();
+                }
+                synchronized ( cache )
+                {
+                    cache.remove( canonical );
+                }
+            }
         }
+        if ( failure != null )
+            throw failure;
+    }
+    
+    /**
+     * Keep the first of several exceptions, with the later ones attached.
+     */
+    private static IOException first( IOException failure, IOException ex )
+    {
+        if ( failure == null )
+            return ex;
+        failure.addSuppressed( ex );
+        return failure;
     }
     
     
     /**
-     * Read headers for all entries in the tar file and make a map.
+     * Make the map of entries in the tar file. If an index checkpoint can
+     * be found and trusted it is loaded and only headers after it are
+     * read. Otherwise every header is read.
      * 
      * @throws IOException 
      */
     private void readComponentMap() throws IOException
     {
-        componentmap.clear();
-        raf.seek(0L);
-        RandomInputStream ris = new RandomInputStream( raf );
-        TarArchiveInputStream tis = new TarArchiveInputStream( ris );
-        TarArchiveEntry entry;
-        long pos = raf.getFilePointer();
-        long size, extra, block;
-        while ( (entry=tis.getNextTarEntry()) != null )
-        {
-            //System.out.println( "File entry: " + entry.getName() + "  length = " + entry.getSize() );
-            // later entry will overwrite older entries - appropriately
-            componentmap.put( entry.getName(), new ComponentEntry( pos, entry ) );
+        componentindex.clear();
+        IndexCheckpoint checkpoint = loadSidecarCheckpoint();
+        if ( checkpoint == null )
+            checkpoint = loadArchiveCheckpoint();
+        scanComponents( checkpoint == null ? 0L : checkpoint.end );
+        packIndex();
+        findDeadSpace();
+    }
+    
+    /**
+     * Drop deleted entries from the index once there are many of them.
+     * Compaction holds slot numbers so it packs the index when it has
+     * finished instead. Call holding the lock.
+     */
+    private void packIndex()
+    {
+        if ( !compactionrunning && componentindex.isSparse() )
+            componentindex.pack();
+    }
+    
+    /**
+     * Work out the dead space from the gaps between current entries.
+     */
+    private void findDeadSpace()
+    {
+        deadspace.clear();
+        long pos, live = 0L;
+        for ( int slot : componentindex.slotsInFileOrder( 0L ) )
+        {
+            pos = componentindex.getPos( slot );
+            deadspace.add( live, pos );
+            live = Math.max( live, componentindex.getEnd( slot ) );
+        }
+        deadspace.add( live, nextnewentry );
+    }
+    
+    /**
+     * Read headers for entries in the tar file from the given position
+     * and add them to the map.
+     * 
+     * @param start File offset of the first header to read.
+     * @throws IOException 
+     */
+    private void scanComponents( long start ) throws IOException
+    {
+        TarHeaderScanner scanner = new TarHeaderScanner( this, start, channel.size() );
+        ComponentEntry centry, last = null;
+        long checkpointpos = -1L;
+        while ( (centry=scanner.next()) != null )
+        {
+            //System.out.println( "File entry: " + centry.name + "  length = " + centry.size );
+            if ( centry.name.equals( DELETED_NAME ) )
+            {
+                componentindex.remove( readTombstone( centry ) );
+                checkpointpos = -1L;
+                last = null;
+            }
+            else if ( centry.name.equals( RESERVE_NAME ) && last != null && last.end == centry.pos )
+            {
+                // space for the entry in front to grow into
+                last.end = centry.end;
+                componentindex.put( last );
+                checkpointpos = -1L;
+                last = null;
+            }
+            else if ( centry.name.startsWith( RESERVED_PREFIX ) )
+            {
+                // not content - if it is at the end the next entry can overwrite it
+                if ( checkpointpos < 0 )
+                    checkpointpos = centry.pos;
+                last = null;
+            }
+            else
+            {
+                // later entry will overwrite older entries - appropriately
+                componentindex.put( centry );
+                checkpointpos = -1L;
+                last = centry;
+            }
+        }
+        nextnewentry = checkpointpos < 0 ? scanner.getPosition() : checkpointpos;
+        if ( !scanner.hasEnd() )
+        {
+            // left by a deferred trailer or a writer that did not finish
+            trailerpending = true;
+            writeTrailer();
+            if ( dataend.get() > nextnewentry + 1024 )
+                truncate( nextnewentry + 1024 );
+        }
+        else if ( dataend.get() > scanner.getPosition() + 1024 )
+        {
+            // preallocated space or data a crash left without a header
+            truncate( scanner.getPosition() + 1024 );
+        }
+    }
+    
+    /**
+     * The file where a sidecar index checkpoint is kept.
+     * @return 
+     */
+    private File getSidecarFile()
+    {
+        return new File( canonical + ".index" );
+    }
+    
+    /**
+     * Look at the end of the archive for an in-archive index checkpoint
+     * and load it into the map if it checks out.
+     * 
+     * @return The checkpoint or null if there isn't a good one.
+     */
+    private IndexCheckpoint loadArchiveCheckpoint()
+    {
+        try
+        {
+            long length = channel.size();
+            if ( length % 512 != 0 )
+                return null;
+            // skip back over the end of archive records to the last record with data
+            int n = (int)Math.min( length, CHECKPOINT_PROBE_SIZE );
+            byte[] tail = new byte[n];
+            readChannelFully( tail, length - n );
+            int off;
+            for ( off = n - 512; off >= 0 && isZeroRecord( tail, off ); off -= 512 )
+                ;
+            if ( off < 0 )
+                return null;
+            IndexCheckpoint checkpoint = IndexCheckpoint.fromFooter( tail, off );
+            if ( checkpoint == null || checkpoint.headerpos < 0 )
+                return null;
             
-            // need to add entry size to find pointer to next entry
-            size = entry.getSize();
-            block = tis.getRecordSize();
-            extra = 0;
-            if ( size > 0 && (size % block) != 0 )
-              extra = block - (size % block);
-            pos = raf.getFilePointer() + size + extra;
+            // the footer must belong to a checkpoint entry where it says
+            long footerpos = length - n + off;
+            byte[] header = new byte[512];
+            readChannelFully( header, checkpoint.headerpos );
+            if ( !TarUtils.verifyCheckSum( header ) )
+                return null;
+            TarArchiveEntry entry = new TarArchiveEntry( header );
+            if ( !IndexCheckpoint.NAME.equals( entry.getName() ) ||
+                 entry.getSize() != footerpos + 512 - (checkpoint.headerpos + 512) ||
+                 entry.getSize() != IndexCheckpoint.entrySize( checkpoint.length ) )
+                return null;
+            
+            long bodypos = checkpoint.headerpos + 512;
+            checkpoint.readBody( new RandomInputStream( bodypos, bodypos + checkpoint.length ), componentindex );
+            return checkpoint;
+        }
+        catch ( IOException | RuntimeException ex )
+        {
+            componentindex.clear();
+            return null;
+        }
+    }
+    
+    /**
+     * Load a sidecar index checkpoint into the map if there is one and it
+     * matches the archive.
+     * 
+     * @return The checkpoint or null if there isn't a good one.
+     */
+    private IndexCheckpoint loadSidecarCheckpoint()
+    {
+        File sidecar = getSidecarFile();
+        if ( !sidecar.isFile() )
+            return null;
+        try
+        {
+            long length = sidecar.length();
+            if ( length < 512 )
+                return null;
+            byte[] footer = new byte[512];
+            try ( RandomAccessFile in = new RandomAccessFile( sidecar, "r" ) )
+            {
+                in.seek( length - 512 );
+                in.readFully( footer );
+            }
+            IndexCheckpoint checkpoint = IndexCheckpoint.fromFooter( footer, 0 );
+            if ( checkpoint == null || checkpoint.length != length - 512 || checkpoint.end > channel.size() )
+                return null;
+            // the last entry it knows about must still be there unchanged
+            if ( checkpoint.tailpos >= 0 && checkpoint.tailcrc != headerCRC( checkpoint.tailpos ) )
+                return null;
+            try ( InputStream in = new BufferedInputStream( new FileInputStream( sidecar ) ) )
+            {
+                checkpoint.readBody( in, componentindex );
+            }
+            return checkpoint;
+        }
+        catch ( IOException | RuntimeException ex )
+        {
+            componentindex.clear();
+            return null;
+        }
+    }
+    
+    /**
+     * Read the name of the deleted entry from a tombstone.
+     * 
+     * @param centry The tombstone.
+     * @return The name.
+     * @throws IOException 
+     */
+    private String readTombstone( ComponentEntry centry ) throws IOException
+    {
+        if ( centry.size > MAX_TOMBSTONE_SIZE )
+            throw new IOException( "Error detected parsing the header at " + centry.pos );
+        byte[] b = new byte[(int)centry.size];
+        readChannelFully( b, centry.datapos );
+        return new String( b, StandardCharsets.UTF_8 );
+    }
+    
+    /**
+     * Save the index according to the checkpoint mode. Called when
+     * the archive is closed.
+     * 
+     * @throws IOException 
+     */
+    private void writeCheckpoint() throws IOException
+    {
+        if ( checkpointmode == CHECKPOINT_NONE || isWriting() )
+            return;
+        
+        ComponentIndex entries = componentindex;
+        IndexCheckpoint checkpoint = new IndexCheckpoint();
+        for ( int i=0; i<entries.slots(); i++ )
+            if ( entries.getPos( i ) > checkpoint.tailpos )
+                checkpoint.tailpos = entries.getPos( i );
+        if ( checkpoint.tailpos >= 0 )
+            checkpoint.tailcrc = headerCRC( checkpoint.tailpos );
+        checkpoint.end = nextnewentry;
+        
+        if ( checkpointmode == CHECKPOINT_IN_ARCHIVE )
+        {
+            checkpoint.headerpos = nextnewentry;
+            long size = IndexCheckpoint.entrySize( IndexCheckpoint.bodyLength( entries ) );
+            TarArchiveEntry entry = new TarArchiveEntry( IndexCheckpoint.NAME );
+            entry.setSize( size );
+            RandomOutputStream out = new RandomOutputStream( nextnewentry, getWriteChunk() );
+            SeekableTarArchiveOutputStream tout = new SeekableTarArchiveOutputStream( out );
+            tout.putArchiveEntry( entry );
+            checkpoint.writeBody( tout, entries );
+            tout.write( new byte[(int)(size - 512 - checkpoint.length)] );
+            tout.write( checkpoint.toFooter() );
+            tout.closeArchiveEntry();
+            tout.close();
+            trailerpending = false;
+            // anything beyond the end of archive records would confuse the next open
+            if ( raf.length() > out.getPosition() )
+                truncate( out.getPosition() );
+        }
+        else
+        {
+            File sidecar = getSidecarFile();
+            File temp = new File( sidecar.getPath() + ".tmp" );
+            try ( OutputStream out = new BufferedOutputStream( new FileOutputStream( temp ) ) )
+            {
+                checkpoint.writeBody( out, entries );
+                out.write( checkpoint.toFooter() );
+            }
+            Files.move( temp.toPath(), sidecar.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
         }
-        nextnewentry = pos;
-        tis.close();
+    }
+    
+    /**
+     * CRC of a 512 byte header record.
+     * 
+     * @param pos File offset of the record.
+     * @return 
+     * @throws IOException 
+     */
+    private long headerCRC( long pos ) throws IOException
+    {
+        byte[] header = new byte[512];
+        readChannelFully( header, pos );
+        CRC32 crc = new CRC32();
+        crc.update( header );
+        return crc.getValue();
+    }
+    
+    private static boolean isZeroRecord( byte[] b, int off )
+    {
+        for ( int i=off; i<off+512; i++ )
+            if ( b[i] != 0 )
+                return false;
+        return true;
     }
     
     
@@ -172,16 +998,36 @@ public class CompositeFile
      * @param name The name to test.
      * @return 
      */
-    public boolean exists( String name )
+    public synchronized boolean exists( String name )
     {
-      ComponentEntry entry=componentmap.get( name );
-      return entry != null;
+      return componentindex.find( name ) >= 0;
     }
     
     
     
+    /**
+     * The size of the content of an entry.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @return Size in bytes.
+     * @throws IOException If there is no such entry.
+     */
+    public synchronized long getSize( String name ) throws IOException
+    {
+        int slot=componentindex.find( name );
+        if ( slot<0 )
+            throw new IOException( "Component not found in CompositeFile " + name );
+        return componentindex.getSize( slot );
+    }
+    
     /**
      * Initialise an InputStream which will read the contents of an entry.
+     * Any number of input streams can be open at the same time, each
+     * with its own position in the archive. They are not blocked by an
+     * entry that is being written because only committed entries can be
+     * found and the writer only touches the file beyond them. The stream
+     * reads straight from the data of the entry, as found by indexing, and
+     * cannot read beyond it.
      * 
      * @param name The (relative) path name of the entry.
      * @return An InputStream for reading content from.
@@ -190,90 +1036,1961 @@ public class CompositeFile
     public synchronized InputStream getInputStream( String name ) throws IOException
     {
         //System.out.println( "Looking for entry: " + name );
-        if ( currentinputstream != null || currentoutputstream != null )
-            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
-        ComponentEntry entry=componentmap.get( name );
-        if ( entry==null )
+        int slot=componentindex.find( name );
+        if ( slot<0 )
             throw new IOException( "Component not found in CompositeFile " + name );
-        raf.seek( entry.pos );
-        RandomInputStream ris = new RandomInputStream( raf );
-        TarArchiveInputStream tis = new TarArchiveInputStream( ris );
-        tis.getNextTarEntry();
-        currentinputstream = tis;
-        return currentinputstream;
+        long datapos = componentindex.getDataPos( slot );
+        if ( datapos < 0 )
+        {
+            // where the data starts was not recorded so parse the header
+            RandomInputStream ris = new RandomInputStream( componentindex.getPos( slot ), componentindex.getEnd( slot ) );
+            ris.registered = true;
+            openreaders.add( ris );
+            TarArchiveInputStream tis = new TarArchiveInputStream( ris );
+            tis.getNextEntry();
+            return tis;
+        }
+        long size = componentindex.getSize( slot );
+        RandomInputStream ris = memorymapped ? new MappedInputStream( datapos, map( datapos, size ) )
+                                             : new RandomInputStream( datapos, datapos + size );
+        ris.registered = true;
+        openreaders.add( ris );
+        return ris;
     }    
     
     /**
-     * This will be called when the InputStream from getInputStream() is closed.
+     * A read only view of the content of an entry backed by a memory
+     * mapping of the archive. Nothing is copied and many views can share
+     * the same mapping. The view stays valid after the entry is replaced,
+     * unless overwriting in place is on when it may show the data of the
+     * replacement instead. It must not be used after the composite file
+     * is closed or while it is compacted.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @return A buffer with position zero and the entry size as its limit.
+     * @throws IOException 
      */
-    synchronized void closeInputStream()
+    public ByteBuffer getByteBuffer( String name ) throws IOException
     {
-        currentinputstream = null;        
+        long datapos, size;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            datapos = componentindex.getDataPos( slot );
+            size = componentindex.getSize( slot );
+        }
+        if ( datapos < 0 )
+            return ByteBuffer.wrap( readAllBytes( name ) ).asReadOnlyBuffer();
+        return map( datapos, size );
     }
     
     /**
-     * Returns an OutputStream for writing data to an entry in the CompositeFile.
-     * The entry will be completed when the OutputStream is closed.
+     * Read the whole content of an entry into a new array with a single
+     * read of the file where possible. Much quicker than a stream for
+     * small entries.
      * 
-     * @param name The relative path name within the tar archive.
-     * @param replace Should the entry go ahead even if there is already an entry with the given name.
-     * @return
+     * @param name The (relative) path name of the entry.
+     * @return The content.
      * @throws IOException 
      */
-    public synchronized OutputStream getOutputStream( String name, boolean replace ) throws IOException
+    public byte[] readAllBytes( String name ) throws IOException
     {
-        //System.out.println( "Looking for entry: " + name );
-        if ( currentinputstream != null || currentoutputstream != null )
-            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
-        ComponentEntry oldentry=componentmap.get( name );
-        // content has indefinate length so allow lots of space
-        // so TarArchiveOutputStream doesn't throw an exception when
-        // content exceeds size. Will need to seek back and update the entry.
-        if ( oldentry!=null && !replace )
-            throw new IOException( "Component already in CompositeFile " + name );
-        
-        newentry = new ComponentEntry( nextnewentry, new TarArchiveEntry( name ) );    
-        newentry.tararchiveentry.setSize(TarConstants.MAXSIZE);
-
-        raf.seek( newentry.pos );
-        RandomOutputStream ros = new RandomOutputStream( raf );
-        tos = new SeekableTarArchiveOutputStream( ros );
-        tos.putArchiveEntry(newentry.tararchiveentry);
-        newentry.datapos = raf.getFilePointer();
-        currentoutputstream = new TarOutputWrapper( tos );
-        return currentoutputstream;
-    }    
-    
-    /**
-     * This is called when the client code closes the OutputStream it
-     * received from calling getOutputStream(). It completes the tar
-     * entry, seeks back to the header to correct the file size and then
-     * appends end of file records to the tar.
-     * 
+        long datapos, size;
+        ReadPin pin;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            datapos = componentindex.getDataPos( slot );
+            size = componentindex.getSize( slot );
+            pin = pin( datapos, datapos + size );
+        }
+        try
+        {
+            if ( size > Integer.MAX_VALUE - 8 )
+                throw new IOException( "Component too large for an array in CompositeFile " + name );
+            if ( datapos < 0 )
+            {
+                try ( InputStream in = getInputStream( name ) )
+                {
+                    byte[] b = new byte[(int)size];
+                    int n, off = 0;
+                    while ( off < b.length && (n = in.read( b, off, b.length - off )) > 0 )
+                        off += n;
+                    if ( off < b.length )
+                        throw new EOFException( "Unexpected end of composite file." );
+                    return b;
+                }
+            }
+            byte[] b = new byte[(int)size];
+            if ( memorymapped )
+                map( datapos, size ).get( b );
+            else
+                readChannelFully( b, datapos );
+            return b;
+        }
+        finally
+        {
+            unpin( pin );
+        }
+    }
+    
+    /**
+     * Read the whole content of an entry into a buffer. The content goes
+     * straight from the file into the buffer, which can be a direct buffer.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @param dst Where to put the content, from its current position.
+     * @return The number of bytes read, the size of the entry.
+     * @throws IOException 
+     * @throws BufferOverflowException If the content will not fit in 
+     * the remaining space of the buffer.
+     */
+    public int read( String name, ByteBuffer dst ) throws IOException
+    {
+        long datapos, size;
+        ReadPin pin;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            datapos = componentindex.getDataPos( slot );
+            size = componentindex.getSize( slot );
+            pin = pin( datapos, datapos + size );
+        }
+        try
+        {
+            if ( size > dst.remaining() )
+                throw new BufferOverflowException();
+            if ( datapos < 0 )
+            {
+                dst.put( readAllBytes( name ) );
+                return (int)size;
+            }
+            if ( memorymapped )
+            {
+                dst.put( map( datapos, size ) );
+                return (int)size;
+            }
+            ByteBuffer slice = dst.duplicate();
+            slice.limit( slice.position() + (int)size );
+            readChannelFully( slice, datapos );
+            dst.position( slice.position() );
+            return (int)size;
+        }
+        finally
+        {
+            unpin( pin );
+        }
+    }
+    
+    /**
+     * Copy the content of an entry to a channel. The operating system
+     * moves the data from the archive to the target, so for a file or
+     * socket it never passes through the Java heap.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @param target Where to write the content, from its current position.
+     * @return The number of bytes written, the size of the entry.
+     * @throws IOException 
+     */
+    public long transferTo( String name, WritableByteChannel target ) throws IOException
+    {
+        long datapos, size;
+        ReadPin pin;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            datapos = componentindex.getDataPos( slot );
+            size = componentindex.getSize( slot );
+            pin = pin( datapos, datapos + size );
+        }
+        try
+        {
+            if ( datapos < 0 )
+            {
+                try ( InputStream in = getInputStream( name ) )
+                {
+                    byte[] b = new byte[64 * 1024];
+                    int n;
+                    while ( (n = in.read( b )) > 0 )
+                    {
+                        ByteBuffer bb = ByteBuffer.wrap( b, 0, n );
+                        while ( bb.hasRemaining() )
+                            target.write( bb );
+                    }
+                }
+                return size;
+            }
+            long done = 0L, n;
+            while ( done < size )
+            {
+                n = channel.transferTo( datapos + done, size - done, target );
+                if ( n <= 0 )
+                    throw new EOFException( "Unexpected end of composite file." );
+                done += n;
+            }
+            return size;
+        }
+        finally
+        {
+            unpin( pin );
+        }
+    }
+    
+    /**
+     * Copy the content of an entry to a file, which is created or
+     * replaced. See transferTo().
+     * 
+     * @param name The (relative) path name of the entry.
+     * @param path The file to write.
+     * @return The number of bytes written, the size of the entry.
+     * @throws IOException 
+     */
+    public long extractTo( String name, Path path ) throws IOException
+    {
+        try ( FileChannel out = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            return transferTo( name, out );
+        }
+    }
+    
+    /**
+     * Open a read only channel onto the content of an entry. Position zero
+     * is the first byte of the entry and the channel ends with the entry.
+     * Reads go straight to that part of the archive so any part of a large
+     * entry can be read without reading what comes before it. Any number
+     * of channels can be open at the same time.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @return The channel.
+     * @throws IOException 
+     */
+    public synchronized SeekableByteChannel openChannel( String name ) throws IOException
+    {
+        int slot=componentindex.find( name );
+        if ( slot<0 )
+            throw new IOException( "Component not found in CompositeFile " + name );
+        long datapos = findDataPos( slot );
+        long size = componentindex.getSize( slot );
+        return new EntryChannel( datapos, size, pin( datapos, datapos + size ) );
+    }
+    
+    /**
+     * Read part of the content of an entry without reading what comes
+     * before it.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @param offset Where to start reading, counted from the first byte of the entry.
+     * @param dst Where to put the content, from its current position.
+     * @return The number of bytes read, which is less than the space in
+     * dst only if the entry ends first, or -1 if offset is at or past the
+     * end of the entry.
+     * @throws IOException 
+     */
+    public int read( String name, long offset, ByteBuffer dst ) throws IOException
+    {
+        if ( offset < 0 )
+            throw new IllegalArgumentException( "Offset cannot be negative." );
+        long datapos, size;
+        ReadPin pin;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            datapos = findDataPos( slot );
+            size = componentindex.getSize( slot );
+            pin = pin( datapos, datapos + size );
+        }
+        try
+        {
+            if ( offset >= size )
+                return -1;
+            int length = (int)Math.min( dst.remaining(), size - offset );
+            ByteBuffer slice = dst.duplicate();
+            slice.limit( slice.position() + length );
+            readChannelFully( slice, datapos + offset );
+            dst.position( slice.position() );
+            return length;
+        }
+        finally
+        {
+            unpin( pin );
+        }
+    }
+    
+    /**
+     * Where the data of an entry starts, parsing its header if that was not
+     * recorded when it was indexed.
+     */
+    private long findDataPos( int slot ) throws IOException
+    {
+        long datapos = componentindex.getDataPos( slot );
+        if ( datapos >= 0 )
+            return datapos;
+        RandomInputStream ris = new RandomInputStream( componentindex.getPos( slot ), componentindex.getEnd( slot ) );
+        TarArchiveInputStream tis = new TarArchiveInputStream( ris );
+        tis.getNextEntry();
+        return ris.getPosition();
+    }
+    
+    /**
+     * Parse the full tar header of an entry. The index only keeps what it
+     * needs to find entries so anything else has to come from the file.
+     * 
+     * @param name The (relative) path name of the entry.
+     * @return The entry as TarArchiveInputStream would return it.
+     * @throws IOException 
+     */
+    public TarArchiveEntry getTarArchiveEntry( String name ) throws IOException
+    {
+        long pos, end;
+        ReadPin pin;
+        synchronized ( this )
+        {
+            int slot=componentindex.find( name );
+            if ( slot<0 )
+                throw new IOException( "Component not found in CompositeFile " + name );
+            pos = componentindex.getPos( slot );
+            end = componentindex.getDataPos( slot );
+            pin = pin( pos, end );
+        }
+        try
+        {
+            try ( TarArchiveInputStream tis = new TarArchiveInputStream( new RandomInputStream( pos, end ) ) )
+            {
+                return tis.getNextEntry();
+            }
+        }
+        finally
+        {
+            unpin( pin );
+        }
+    }
+    
+    /**
+     * This will be called when an InputStream from getInputStream() is closed.
+     * 
+     * @param ris The underlying stream that was closed.
+     */
+    synchronized void closeInputStream( RandomInputStream ris )
+    {
+        openreaders.remove( ris );
+        notifyAll();                          // compaction may be waiting
+    }
+    
+    /**
+     * Record that a range of the file is about to be read without holding
+     * the lock, so compaction will not overwrite it. Call holding the lock
+     * and call unpin() when the read is done.
+     * 
+     * @param start File offset of the first byte.
+     * @param end File offset after the last byte.
+     * @return The pin to pass to unpin().
+     */
+    private ReadPin pin( long start, long end )
+    {
+        ReadPin pin = new ReadPin( start, end );
+        pins.add( pin );
+        return pin;
+    }
+    
+    private synchronized void unpin( ReadPin pin )
+    {
+        pins.remove( pin );
+        notifyAll();                          // compaction may be waiting
+    }
+    
+    /**
+     * Wait until nothing is reading a range of the file. Call holding the
+     * lock.
+     * 
+     * @param start File offset of the first byte.
+     * @param end File offset after the last byte.
+     * @throws InterruptedIOException 
+     */
+    private void waitForReaders( long start, long end ) throws InterruptedIOException
+    {
+        try
+        {
+            while ( isBeingRead( start, end ) )
+                wait();
+        }
+        catch ( InterruptedException ex )
+        {
+            throw new InterruptedIOException( "Interrupted waiting for readers of CompositeFile " + canonical );
+        }
+    }
+    
+    private boolean isBeingRead( long start, long end )
+    {
+        for ( ReadPin pin : pins )
+            if ( pin.start < end && start < pin.end )
+                return true;
+        // a stream never goes back so only what it has left matters
+        for ( RandomInputStream ris : openreaders )
+            if ( ris.position < end && start < ris.limit )
+                return true;
+        return false;
+    }
+    
+    /**
+     * Wait until no entry or batch is being written. Call holding the lock.
+     * 
+     * @throws InterruptedIOException 
+     */
+    private void waitForWriter() throws InterruptedIOException
+    {
+        try
+        {
+            while ( isWriting() )
+                wait();
+        }
+        catch ( InterruptedException ex )
+        {
+            throw new InterruptedIOException( "Interrupted waiting for writer of CompositeFile " + canonical );
+        }
+    }
+    
+    /**
+     * Wait while compaction is moving an entry to the end of the archive or
+     * trimming it. Those steps are short so writers wait for them instead
+     * of failing. Call holding the lock.
+     * 
+     * @throws InterruptedIOException 
+     */
+    private void waitForCompaction() throws InterruptedIOException
+    {
+        try
+        {
+            while ( compacting )
+                wait();
+        }
+        catch ( InterruptedException ex )
+        {
+            throw new InterruptedIOException( "Interrupted waiting for compaction of CompositeFile " + canonical );
+        }
+    }
+    
+    /**
+     * Wait until no entry or batch is being written and every staged
+     * writer with an earlier ticket has started. Call holding the lock.
+     * 
+     * @param ticket The ticket of the staged writer.
+     * @throws InterruptedIOException 
+     */
+    private void waitForTurn( long ticket ) throws InterruptedIOException
+    {
+        try
+        {
+            while ( ticket != servingticket || isWriting() )
+                wait();
+        }
+        catch ( InterruptedException ex )
+        {
+            // the turn is passed on when it comes
+            if ( ticket != servingticket )
+                abandonedtickets.add( ticket );
+            throw new InterruptedIOException( "Interrupted waiting for writer of CompositeFile " + canonical );
+        }
+    }
+    
+    /**
+     * Let the staged writer with the next ticket go. Call holding the lock.
+     */
+    private void nextTurn()
+    {
+        servingticket++;
+        while ( abandonedtickets.remove( servingticket ) )
+            servingticket++;
+        notifyAll();
+    }
+    
+    /**
+     * How much of the archive is taken up by entries which have been
+     * replaced or deleted, and so could be reclaimed by compaction.
+     * 
+     * @return Number of bytes.
+     */
+    public synchronized long getDeadBytes()
+    {
+        return deadspace.total();
+    }
+    
+    /**
+     * How many separate holes the dead bytes are in.
+     * 
+     * @return Number of holes.
+     */
+    public synchronized int getDeadRangeCount()
+    {
+        return deadspace.count();
+    }
+    
+    /**
+     * Write a copy of the archive without the space taken by entries which
+     * have been replaced or deleted. The entries that are still current are copied
+     * byte for byte, headers included, in the order they are in the
+     * archive. The copy is made with channel transfers so the data does
+     * not pass through the heap. It holds the entries which were current
+     * when it started. Entries can be read and new ones added while the
+     * copy is made, since nothing overwrites entries that have been
+     * replaced or deleted until the copy is done. Only appendTo() and
+     * compact() are refused until then.
+     * 
+     * @param target The file to write, which is replaced if it exists.
+     * It must not be this archive and should not be open.
+     * @return The length of the copy.
+     * @throws IOException 
+     */
+    public long compactTo( File target ) throws IOException
+    {
+        if ( target.getCanonicalPath().equals( canonical ) )
+            throw new IOException( "Attempt to compact CompositeFile onto itself " + canonical );
+        long[] positions, ends;
+        synchronized ( this )
+        {
+            if ( compactionrunning )
+                throw new IOException( "Attempt to compact CompositeFile while it is already being compacted." );
+            // an entry being appended to is changing where it is
+            try
+            {
+                while ( currentappend != null )
+                    wait();
+            }
+            catch ( InterruptedException ex )
+            {
+                throw new InterruptedIOException( "Interrupted waiting for writer of CompositeFile " + canonical );
+            }
+            compactionrunning = true;
+            int[] slots = componentindex.slotsInFileOrder( 0L );
+            positions = new long[slots.length];
+            ends = new long[slots.length];
+            for ( int i=0; i<slots.length; i++ )
+            {
+                positions[i] = componentindex.getPos( slots[i] );
+                ends[i] = componentindex.getEnd( slots[i] );
+            }
+        }
+        try ( FileChannel out = FileChannel.open( target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                                   StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            // entries replaced meanwhile stay where they were so the copy
+            // works from the positions taken at the start
+            long pos, length, done, n;
+            for ( int i=0; i<positions.length; i++ )
+            {
+                pos = positions[i];
+                length = ends[i] - pos;
+                for ( done = 0L; done < length; done += n )
+                {
+                    n = channel.transferTo( pos + done, length - done, out );
+                    if ( n <= 0 )
+                        throw new EOFException( "Unexpected end of composite file." );
+                }
+            }
+            ByteBuffer trailer = ByteBuffer.wrap( new byte[1024] );
+            while ( trailer.hasRemaining() )
+                out.write( trailer );
+            out.force( true );
+            return out.position();
+        }
+        finally
+        {
+            synchronized ( this )
+            {
+                compactionrunning = false;
+                componentindex.pack();
+            }
+        }
+    }
+    
+    /**
+     * Reclaim the space taken by entries which have been replaced or
+     * deleted, in place. Entries that are still current slide down into the free space
+     * in front of them, or are copied to the end of the archive if they
+     * are too big to fit, and the file is trimmed at the end.
+     * 
+     * Entries can be read and written while this runs, though a writer
+     * waits while an entry is moved to the end of the archive or the file
+     * is trimmed. Each entry is
+     * copied before the index is changed to point at the copy so readers
+     * always find a complete entry, and space is only overwritten once
+     * nothing is reading it. So streams must be closed or compaction will
+     * wait for them. Buffers from getByteBuffer() are not protected and
+     * must not be used while compaction runs.
+     * 
+     * Free space is covered by filler entries, and the first record of an
+     * entry is copied after the rest, so the archive is a valid tar archive
+     * throughout and a crash loses nothing.
+     * 
+     * @param bytespersecond The most data to move each second, so that
+     * compaction does not starve other work of the device. Zero for no
+     * limit.
+     * @return How many bytes shorter the archive is.
+     * @throws IOException 
+     */
+    public long compact( long bytespersecond ) throws IOException
+    {
+        long before, from;
+        int alignment;
+        synchronized ( this )
+        {
+            if ( compactionrunning )
+                throw new IOException( "Attempt to compact CompositeFile while it is already being compacted." );
+            waitForWriter();
+            compactionrunning = true;
+            invalidateCheckpoints();
+            before = dataend.get();
+            // everything before the first hole stays where it is
+            from = deadspace.first();
+            if ( from < 0 )
+                from = nextnewentry;
+            alignment = dataalignment;
+        }
+        try
+        {
+            new Compaction( bytespersecond, from, alignment ).run();
+            synchronized ( this )
+            {
+                return before - dataend.get();
+            }
+        }
+        finally
+        {
+            synchronized ( this )
+            {
+                compactionrunning = false;
+                componentindex.pack();
+            }
+        }
+    }
+    
+    /**
+     * Remove saved copies of the index before entries are moved. Anything
+     * after the end of the archive, like an index checkpoint entry, goes.
+     * Call holding the lock when nothing is being written.
+     * 
+     * @throws IOException 
+     */
+    private void invalidateCheckpoints() throws IOException
+    {
+        File sidecar = getSidecarFile();
+        if ( sidecar.exists() && !sidecar.delete() )
+            throw new IOException( "Unable to delete index checkpoint " + sidecar );
+        if ( trailerpending || dataend.get() > nextnewentry + 1024 )
+        {
+            RandomOutputStream eof = new RandomOutputStream( nextnewentry, null );
+            eof.write( zeroblock );
+            eof.write( zeroblock );
+            eof.close();
+            trailerpending = false;
+            truncate( nextnewentry + 1024 );
+        }
+    }
+
+    /**
+     * Cut the file off after the end of archive records. When preallocating
+     * a small amount of stale data is overwritten with zeros instead, so
+     * the extent is kept. Otherwise preallocated space goes too, and is
+     * allocated again by the next write that needs it. Call holding the
+     * lock.
+     * 
+     * @param length The new length of the file.
+     * @throws IOException 
+     */
+    private void truncate( long length ) throws IOException
+    {
+        long stale = dataend.get() - length;
+        if ( preallocation > 0L && stale <= MAX_ZEROED_TAIL )
+        {
+            // zeros keep the preallocated extent looking unused
+            if ( stale > 0L )
+                writeChannel( ByteBuffer.wrap( new byte[(int)stale] ), length );
+        }
+        else
+        {
+            raf.setLength( length );
+            allocatedlength = length;
+        }
+        dataend.set( length );
+    }
+
+    /**
+     * Extend the file to the next whole extent past the given offset.
+     * 
+     * @param end File offset that is about to be written up to.
+     * @throws IOException 
+     */
+    private synchronized void preallocate( long end ) throws IOException
+    {
+        long extent = preallocation;
+        if ( extent <= 0L || end <= allocatedlength )
+            return;
+        long length = (end / extent + 1L) * extent;
+        if ( raf.length() < length )
+            raf.setLength( length );
+        allocatedlength = length;
+    }
+
+    /**
+     * When preallocating, the space an entry is written into already reads
+     * as zeros, so a crash part way through its data would leave an entry
+     * that looks complete. The first header record is taken back out and
+     * written after the data, so until then the end of archive is where
+     * the entry starts.
+     * 
+     * @param out The stream the header has just been written to.
+     * @param pos File offset of the header.
+     * @return The first header record or null if not preallocating.
+     * @throws IOException 
+     */
+    private byte[] holdHeader( RandomOutputStream out, long pos ) throws IOException
+    {
+        if ( preallocation <= 0L )
+            return null;
+        byte[] held = new byte[512];
+        out.hold( pos, held );
+        return held;
+    }
+
+    /**
+     * Write a header record from holdHeader() once the data is down.
+     * 
+     * @param held The record or null if none was held.
+     * @param pos File offset of the header.
+     * @throws IOException 
+     */
+    private void releaseHeader( byte[] held, long pos ) throws IOException
+    {
+        if ( held == null )
+            return;
+        barrier();
+        writeChannel( ByteBuffer.wrap( held ), pos );
+    }
+
+    
+    /**
+     * Returns an OutputStream for writing data to an entry in the CompositeFile.
+     * The entry will be completed when the OutputStream is closed. Only one
+     * entry can be written at a time but entries that are already in the
+     * archive can still be read while it is open. The new entry becomes
+     * visible to readers when the OutputStream is closed. Use
+     * getStagedOutputStream() to write several entries at once.
+     * 
+     * Data is held in memory until there is more than the staging size, so
+     * small entries are written in one pass when the stream is closed.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return The stream, which also gives access to the future that
+     * completes when the entry is durable.
+     * @throws IOException 
+     */
+    public synchronized TarOutputWrapper getOutputStream( String name, boolean replace ) throws IOException
+    {
+        waitForCompaction();
+        if ( isWriting() )
+            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
+        TarOutputWrapper wrapper = new TarOutputWrapper( newEntry( name, replace, nextnewentry ), getStagingBuffer() );
+        currentoutputstream = wrapper;
+        if ( wrapper.staged == null )
+        {
+            // content has indefinate length so allow lots of space
+            // so TarArchiveOutputStream doesn't throw an exception when
+            // content exceeds size. Will need to seek back and update the entry.
+            startEntry( wrapper, TarConstants.MAXSIZE );
+        }
+        return wrapper;
+    }    
+    
+    /**
+     * Returns an OutputStream for writing an entry whose size is known in
+     * advance. The header is written once with the right size so nothing
+     * needs to be corrected when the stream is closed. Exactly the given
+     * number of bytes must be written.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param size The number of bytes that will be written.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return The stream, which also gives access to the future that
+     * completes when the entry is durable.
+     * @throws IOException 
+     */
+    public synchronized TarOutputWrapper getOutputStream( String name, long size, boolean replace ) throws IOException
+    {
+        if ( size < 0 )
+            throw new IllegalArgumentException( "Entry size cannot be negative." );
+        waitForCompaction();
+        if ( isWriting() )
+            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
+        TarOutputWrapper wrapper = new TarOutputWrapper( newEntry( name, replace, nextnewentry ), null );
+        wrapper.declaredsize = size;
+        currentoutputstream = wrapper;
+        startEntry( wrapper, size );
+        return wrapper;
+    }    
+    
+    /**
+     * Add an entry with the given content.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param data The content.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException 
+     */
+    public CompletableFuture<Void> put( String name, byte[] data, boolean replace ) throws IOException
+    {
+        TarOutputWrapper out = getOutputStream( name, data.length, replace );
+        out.write( data );
+        out.close();
+        return out.getDurableFuture();
+    }
+    
+    /**
+     * Add an entry with the remaining content of a buffer, which is
+     * consumed.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param data The content.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException 
+     */
+    public CompletableFuture<Void> put( String name, ByteBuffer data, boolean replace ) throws IOException
+    {
+        TarOutputWrapper out = getOutputStream( name, data.remaining(), replace );
+        if ( data.hasArray() )
+        {
+            out.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+            data.position( data.limit() );
+        }
+        else
+        {
+            byte[] b = new byte[ Math.min( data.remaining(), 64 * 1024 ) ];
+            int n;
+            while ( data.hasRemaining() )
+            {
+                n = Math.min( b.length, data.remaining() );
+                data.get( b, 0, n );
+                out.write( b, 0, n );
+            }
+        }
+        out.close();
+        return out.getDurableFuture();
+    }
+    
+    /**
+     * Add an entry with the content of a file.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param path The file to copy.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException 
+     */
+    public CompletableFuture<Void> put( String name, Path path, boolean replace ) throws IOException
+    {
+        return addFile( name, path, replace );
+    }
+    
+    /**
+     * Add an entry with the content of a file. The header is written once
+     * with the size of the file and the content is transferred from file
+     * to file by the operating system, so large files are added at close
+     * to the speed of the device.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param path The file to copy.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException 
+     */
+    public CompletableFuture<Void> addFile( String name, Path path, boolean replace ) throws IOException
+    {
+        try ( FileChannel in = FileChannel.open( path, StandardOpenOption.READ ) )
+        {
+            return addChannel( name, in, in.size(), replace );
+        }
+    }
+    
+    /**
+     * Add an entry with content read from a channel. The header is written
+     * once with the given size and the content is transferred straight
+     * into the archive.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param src The channel, which must supply at least size bytes from its current position.
+     * @param size The number of bytes to add.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException If the channel ends before size bytes.
+     */
+    public CompletableFuture<Void> addChannel( String name, ReadableByteChannel src, long size, boolean replace ) throws IOException
+    {
+        if ( size < 0 )
+            throw new IllegalArgumentException( "Entry size cannot be negative." );
+        return transferEntry( name, size, src, replace, false );
+    }
+    
+    /**
+     * Returns an OutputStream which many threads can have open at the same
+     * time, unlike getOutputStream(). Data goes to a buffer of its own and
+     * then to a temporary file next to the archive if it outgrows the
+     * buffer. Nothing is written to the archive until the stream is closed.
+     * Then the entry is appended in one go, with the data transferred from
+     * the temporary file by the operating system. If another entry is being
+     * written at the time, close() waits for it to finish. Entries from
+     * streams closed while others wait are appended in the order of the
+     * close() calls.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return The stream.
+     * @throws IOException 
+     */
+    public synchronized StagedOutputStream getStagedOutputStream( String name, boolean replace ) throws IOException
+    {
+        checkName( name, replace );
+        return new StagedOutputStream( name, replace, stagingsize > 0 ? stagingsize : DEFAULT_STAGING_SIZE );
+    }
+    
+    /**
+     * Start appending a batch of entries. The entries are written one
+     * after another through a single stream and none of them can be seen
+     * until the batch is committed. If the batch is aborted, or never
+     * committed, none of them will ever be seen, even after the archive
+     * is reopened. Nothing else can be written while the batch is open.
+     * 
+     * @return The batch.
+     * @throws IOException 
+     */
+    public synchronized Batch beginBatch() throws IOException
+    {
+        waitForCompaction();
+        if ( isWriting() )
+            throw new IOException( "Attempt to begin batch before previous operation has completed." );
+        currentbatch = new Batch( nextnewentry );
+        return currentbatch;
+    }
+    
+    /**
+     * Returns an OutputStream for writing an entry which is going to grow.
+     * Space is reserved after the data so that appendTo() can add to the
+     * entry later without copying it. The space is covered by a filler
+     * entry, so other tar tools just see an extra file, and it stays with
+     * the entry when the archive is compacted. It is lost if the entry is
+     * replaced.
+     * 
+     * This is not a getOutputStream( name, reserve ) overload because
+     * getOutputStream( name, size, replace ) already takes a long, the size
+     * of the data, and the two would be too easy to mix up.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param reserve The number of bytes to reserve, rounded up to a whole
+     * number of records.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @return The stream.
+     * @throws IOException 
+     */
+    public synchronized TarOutputWrapper getGrowableOutputStream( String name, long reserve, boolean replace ) throws IOException
+    {
+        if ( reserve < 0 )
+            throw new IllegalArgumentException( "Reserved space cannot be negative." );
+        TarOutputWrapper wrapper = getOutputStream( name, replace );
+        wrapper.reserve = reserve;
+        return wrapper;
+    }
+    
+    /**
+     * How many bytes can be added to an entry with appendTo().
+     * 
+     * @param name The entry.
+     * @return Number of bytes, zero if no space was reserved.
+     * @throws IOException 
+     */
+    public synchronized long getAppendCapacity( String name ) throws IOException
+    {
+        int slot = componentindex.find( name );
+        if ( slot < 0 )
+            throw new IOException( "Component not found in CompositeFile " + name );
+        return componentindex.getEnd( slot ) - componentindex.getDataPos( slot ) - componentindex.getSize( slot );
+    }
+    
+    /**
+     * Returns an OutputStream which adds data to the end of an entry, using
+     * the space reserved when the entry was written with
+     * getGrowableOutputStream(). Only the new data is written and the
+     * header is corrected when the stream is closed, which is when the
+     * new data can be seen. Writing more than getAppendCapacity() allows
+     * fails. Nothing else can be written while the stream is open.
+     * 
+     * If there is a crash before the stream is closed the entry keeps its
+     * old length. A crash while it is being closed can leave one record of
+     * the new data wrong but the archive and the old data are intact.
+     * 
+     * @param name The entry.
+     * @return The stream.
+     * @throws IOException 
+     */
+    public synchronized AppendOutputStream appendTo( String name ) throws IOException
+    {
+        waitForCompaction();
+        if ( isWriting() )
+            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
+        if ( compactionrunning )
+            throw new IOException( "Attempt to append to entry while CompositeFile is being compacted " + name );
+        ComponentEntry entry = componentindex.get( name );
+        if ( entry == null )
+            throw new IOException( "Component not found in CompositeFile " + name );
+        // a saved index would not know the entry has grown
+        invalidateCheckpoints();
+        currentappend = new AppendOutputStream( entry );
+        return currentappend;
+    }
+    
+    /**
+     * Called when an AppendOutputStream is closed. The new filler goes in
+     * first, inside the data of the old one, then the header is corrected
+     * and last the record the old filler header was in, which had to be
+     * held back so the archive stayed valid.
+     * 
+     * @param out The stream.
+     * @throws IOException 
+     */
+    synchronized void closeAppend( AppendOutputStream out ) throws IOException
+    {
+        try
+        {
+            ComponentEntry entry = out.entry;
+            long size = out.position - entry.datapos;
+            if ( size == entry.size )
+            {
+                out.durable = CompletableFuture.completedFuture( null );
+                return;
+            }
+            long end = entry.datapos + TarHeaderScanner.padded( size );
+            if ( end < entry.end )
+                writeFiller( RESERVE_NAME, end, entry.end );
+            barrier();
+            // streams that have not read the header yet must wait
+            waitForReaders( entry.pos, entry.datapos );
+            long mtime = System.currentTimeMillis() / 1000L * 1000L;
+            headerpatcher.patch( entry.pos, entry.datapos, size, mtime );
+            if ( out.position > out.fillerpos )
+                writeChannel( ByteBuffer.wrap( out.held, 0, (int)Math.min( 512L, out.position - out.fillerpos ) ), out.fillerpos );
+            entry.size = size;
+            entry.mtime = mtime;
+            componentindex.put( entry );
+            out.durable = commitEntry( size - out.startsize );
+        }
+        finally
+        {
+            currentappend = null;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Is an entry or a batch being written?
+     */
+    private boolean isWriting()
+    {
+        return currentoutputstream != null || currentbatch != null || currentappend != null
+               || currenttransfer != null || compacting;
+    }
+    
+    /**
+     * Checks that a new entry can be made.
+     * 
+     * @param name
+     * @param replace
+     * @param pos Where the entry will go.
+     * @return The entry.
+     * @throws IOException 
+     */
+    private ComponentEntry newEntry( String name, boolean replace, long pos ) throws IOException
+    {
+        checkName( name, replace );
+        return new ComponentEntry( pos, new TarArchiveEntry( name ) );    
+    }
+    
+    private void checkName( String name, boolean replace ) throws IOException
+    {
+        //System.out.println( "Looking for entry: " + name );
+        if ( componentindex.find( name )>=0 && !replace )
+            throw new IOException( "Component already in CompositeFile " + name );
+        if ( name.startsWith( RESERVED_PREFIX ) )
+            throw new IOException( "Reserved name cannot be used in CompositeFile " + name );
+    }
+    
+    /**
+     * Append a whole entry whose data comes from a channel. The header is
+     * written with the right size and then the data is transferred from
+     * the channel straight into the file, which for a file channel can be
+     * done by the operating system without copying through the heap. The
+     * lock is only held to write the header and to publish the entry, so
+     * entries can be read while the data is transferred.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @param size The number of bytes to take from the channel.
+     * @param src The channel, positioned at the start of the data.
+     * @param replace Should the entry go ahead even if there is already an entry with the given name.
+     * @param wait True to wait for another writer to finish instead of
+     * failing, taking a turn after the waiting writers that came first.
+     * @return A future that completes when the entry is durable.
+     * @throws IOException 
+     */
+    private CompletableFuture<Void> transferEntry( String name, long size, ReadableByteChannel src, boolean replace, boolean wait ) throws IOException
+    {
+        ComponentEntry entry;
+        byte[] held;
+        boolean deferred;
+        synchronized ( this )
+        {
+            long ticket = wait ? nextticket++ : -1L;
+            try
+            {
+                if ( wait )
+                    waitForTurn( ticket );
+                else
+                    waitForCompaction();
+                if ( isWriting() )
+                    throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
+                entry = newEntry( name, replace, nextnewentry );
+                entry.tararchiveentry.setSize( size );
+                RandomOutputStream hos = new RandomOutputStream( entry.pos, null );
+                SeekableTarArchiveOutputStream header = new SeekableTarArchiveOutputStream( hos );
+                header.setDataAlignment( dataalignment, entry.pos );
+                header.putArchiveEntry( entry.tararchiveentry );
+                entry.datapos = hos.getPosition();
+                held = holdHeader( hos, entry.pos );
+                preallocate( entry.datapos + size );
+                deferred = deferredtrailer;
+                currenttransfer = entry;
+            }
+            finally
+            {
+                // the next in line waits on currenttransfer now, or goes
+                // ahead if this one failed
+                if ( wait && ticket == servingticket )
+                    nextTurn();
+            }
+        }
+        
+        long done = 0L, n;
+        boolean complete = false;
+        try
+        {
+            while ( done < size )
+            {
+                n = channel.transferFrom( src, entry.datapos + done, size - done );
+                if ( n <= 0 )
+                    break;
+                dataend.accumulateAndGet( entry.datapos + done + n, Math::max );
+                done += n;
+            }
+            if ( done == size )
+            {
+                // padding to the end of the record then the end of archive
+                long end = entry.datapos + TarHeaderScanner.padded( size );
+                int tail = (int)(end - entry.datapos - size) + (deferred ? 0 : 1024);
+                writeChannel( ByteBuffer.wrap( new byte[tail] ), entry.datapos + size );
+                complete = true;
+            }
+        }
+        finally
+        {
+            if ( !complete )
+            {
+                synchronized ( this )
+                {
+                    currenttransfer = null;
+                    notifyAll();
+                    // put the end of archive back where it was
+                    RandomOutputStream eof = new RandomOutputStream( entry.pos, null );
+                    eof.write( zeroblock );
+                    eof.write( zeroblock );
+                    eof.close();
+                    trailerpending = false;
+                    if ( dataend.get() > entry.pos + 1024 )
+                        truncate( entry.pos + 1024 );
+                }
+            }
+        }
+        if ( !complete )
+            throw new IOException( "Attempt to add entry after " + done + " of " + size + " bytes in CompositeFile " + name );
+        
+        synchronized ( this )
+        {
+            // the next writer must not start before the entry is published
+            currenttransfer = null;
+            notifyAll();
+            entry.size = size;
+            entry.end = entry.datapos + TarHeaderScanner.padded( size );
+            releaseHeader( held, entry.pos );
+            trailerpending = deferred;
+            nextnewentry = entry.end;
+            ComponentEntry old = publish( entry );
+            CompletableFuture<Void> durable = commitEntry( entry.end - entry.pos );
+            if ( old != null )
+                overwriteInPlace( old, entry );
+            return durable;
+        }
+    }
+    
+    /**
+     * Put a complete entry in the index. The entry it replaces, if any,
+     * becomes dead space.
+     * 
+     * @param entry 
+     * @return The entry that was replaced or null.
+     */
+    private ComponentEntry publish( ComponentEntry entry )
+    {
+        int slot = componentindex.find( entry.name );
+        ComponentEntry old = null;
+        if ( slot >= 0 )
+        {
+            old = componentindex.get( slot );
+            deadspace.add( old.pos, old.end );
+        }
+        componentindex.put( entry );
+        return old;
+    }
+    
+    /**
+     * Move a replacement which has just been added at the end of the
+     * archive into the space of the entry it replaced, if overwriting in
+     * place is on and it fits. The copy at the end is only removed once
+     * the one in place is on the device, so after a crash one or the
+     * other is found.
+     * 
+     * @param old The replaced entry.
+     * @param entry The replacement, the last entry in the archive.
+     * @throws IOException 
+     */
+    private void overwriteInPlace( ComponentEntry old, ComponentEntry entry ) throws IOException
+    {
+        long end = old.datapos + TarHeaderScanner.padded( entry.size );
+        // both headers must be single records to swap one for the other
+        if ( !overwriteinplace || compactionrunning || entry.end != nextnewentry
+             || old.datapos != old.pos + 512 || entry.datapos != entry.pos + 512
+             || entry.end != entry.datapos + TarHeaderScanner.padded( entry.size ) || end > old.end || isBeingRead( old.pos, old.end ) )
+            return;
+        // a saved index would not know the entry has changed size
+        invalidateCheckpoints();
+        // forced even when the durability policy would not, because a
+        // crash with the writes out of order loses both entries
+        channel.force( false );
+        copyWithin( entry.datapos, old.datapos, end - old.datapos );
+        // a filler entry covers any space the replacement does not need
+        if ( end < old.end )
+            writeFree( end, old.end );
+        entry.tararchiveentry.setSize( entry.size );
+        SeekableTarArchiveOutputStream header = new SeekableTarArchiveOutputStream( new RandomOutputStream( old.pos, null ) );
+        header.putArchiveEntry( entry.tararchiveentry );
+        channel.force( false );
+        
+        // the copy at the end is no longer needed
+        RandomOutputStream eof = new RandomOutputStream( entry.pos, null );
+        eof.write( zeroblock );
+        eof.write( zeroblock );
+        eof.close();
+        trailerpending = false;
+        nextnewentry = entry.pos;
+        if ( dataend.get() > nextnewentry + 1024 )
+        {
+            truncate( nextnewentry + 1024 );
+            synchronized ( mappings )
+            {
+                mappings.clear();
+            }
+        }
+        entry.pos = old.pos;
+        entry.datapos = old.datapos;
+        entry.end = end;
+        componentindex.put( entry );
+        deadspace.remove( old.pos, end );
+    }
+    
+    /**
+     * Copy data from one part of the file to another.
+     */
+    private void copyWithin( long from, long to, long length ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( (int)Math.min( length, COMPACT_CHUNK_SIZE ) );
+        int n;
+        for ( long done = 0L; done < length; done += n )
+        {
+            n = (int)Math.min( buffer.capacity(), length - done );
+            buffer.clear();
+            buffer.limit( n );
+            readChannelFully( buffer, from + done );
+            buffer.flip();
+            writeChannel( buffer, to + done );
+        }
+    }
+    
+    /**
+     * Write the header of a filler entry whose data covers the space
+     * from start up to end.
+     */
+    private void writeFree( long start, long end ) throws IOException
+    {
+        writeFiller( FREE_NAME, start, end );
+    }
+    
+    private void writeFiller( String name, long start, long end ) throws IOException
+    {
+        TarArchiveEntry entry = new TarArchiveEntry( name );
+        entry.setSize( end - start - 512 );
+        SeekableTarArchiveOutputStream header = new SeekableTarArchiveOutputStream( new RandomOutputStream( start, null ) );
+        header.setBigNumberMode( SeekableTarArchiveOutputStream.BIGNUMBER_STAR );
+        header.putArchiveEntry( entry );
+    }
+    
+    /**
+     * Make sure what has been written is on the device before the
+     * write that depends on it.
+     */
+    private void barrier() throws IOException
+    {
+        if ( durability != OS_MANAGED )
+            channel.force( false );
+    }
+    
+    /**
+     * Remove an entry. A tombstone entry holding the name is added to the
+     * end of the archive so the entry stays deleted when the archive is
+     * opened again, and other tar tools just see an extra file. The space
+     * taken by the entry and the tombstone is reclaimed by compaction.
+     * 
+     * @param name The relative path name within the tar archive.
+     * @return A future that completes when the deletion is durable.
+     * @throws IOException 
+     */
+    public synchronized CompletableFuture<Void> delete( String name ) throws IOException
+    {
+        waitForCompaction();
+        if ( isWriting() )
+            throw new IOException( "Attempt to get data from composite file before previous operation has completed." );        
+        int slot = componentindex.find( name );
+        if ( slot < 0 )
+            throw new IOException( "Component not found in CompositeFile " + name );
+        byte[] b = name.getBytes( StandardCharsets.UTF_8 );
+        if ( b.length > MAX_TOMBSTONE_SIZE )
+            throw new IOException( "Attempt to delete entry with too long a name in CompositeFile " + canonical );
+        TarArchiveEntry tombstone = new TarArchiveEntry( DELETED_NAME );
+        tombstone.setSize( b.length );
+        long start = nextnewentry;
+        RandomOutputStream out = new RandomOutputStream( start, getWriteChunk() );
+        SeekableTarArchiveOutputStream tout = new SeekableTarArchiveOutputStream( out );
+        tout.putArchiveEntry( tombstone );
+        tout.write( b );
+        tout.closeArchiveEntry();
+        long end = out.getPosition();
+        if ( deferredtrailer )
+        {
+            out.close();
+            trailerpending = true;
+        }
+        else
+        {
+            tout.close();
+            trailerpending = false;
+        }
+        nextnewentry = end;
+        deadspace.add( componentindex.getPos( slot ), componentindex.getEnd( slot ) );
+        deadspace.add( start, end );
+        componentindex.remove( name );
+        packIndex();
+        return commitEntry( end - start );
+    }
+    
+    /**
+     * Writes the header of the new entry and sets up the streams to write
+     * its data.
+     * 
+     * @param wrapper The stream the data will come from.
+     * @param headersize The size to put in the header.
+     * @throws IOException 
+     */
+    private void startEntry( TarOutputWrapper wrapper, long headersize ) throws IOException
+    {
+        ComponentEntry newentry = wrapper.entry;
+        newentry.tararchiveentry.setSize( headersize );
+        if ( wrapper.batch != null )
+        {
+            wrapper.batch.startEntry( wrapper );
+            return;
+        }
+        ros = new RandomOutputStream( newentry.pos, getWriteChunk() );
+        tos = new SeekableTarArchiveOutputStream( ros );
+        tos.setDataAlignment( dataalignment, newentry.pos );
+        tos.putArchiveEntry(newentry.tararchiveentry);
+        newentry.datapos = ros.getPosition();
+        wrapper.heldheader = holdHeader( ros, newentry.pos );
+        wrapper.tos = tos;
+        wrapper.ros = ros;
+    }
+    
+    /**
+     * This is called when the client code closes the OutputStream it
+     * received from calling getOutputStream(). It completes the tar
+     * entry, seeks back to the header to correct the file size if it
+     * was not known and then appends end of file records to the tar.
+     * 
      * @throws IOException 
      */
     synchronized void closeOutputStream() throws IOException
     {   
-        long pos, size;
+        long size;
+        TarOutputWrapper wrapper = currentoutputstream;
         currentoutputstream = null;
+        notifyAll();                          // staged writers may be waiting
+        ComponentEntry newentry = wrapper.entry;
+        long headersize = wrapper.declaredsize;
+        if ( wrapper.staged != null )
+        {
+            // all the data is here so the header can be right first time
+            headersize = wrapper.stagedlength;
+            startEntry( wrapper, headersize );
+            tos.write( wrapper.staged, 0, wrapper.stagedlength );
+            wrapper.staged = null;
+        }
         tos.flush();
-        pos = raf.getFilePointer();
         tos.closeArchiveEntry();              // pads to end of 512 byte block
         size = tos.getEntrySize();
         //System.out.println( "            Wrote 0x" + Long.toHexString(size) + " = " + size + " bytes" );
+        if ( headersize >= 0 && size != headersize )
+        {
+            // put the end of archive back where it was
+            RandomOutputStream eof = new RandomOutputStream( newentry.pos, null );
+            eof.write( zeroblock );
+            eof.write( zeroblock );
+            eof.close();
+            trailerpending = false;
+            if ( dataend.get() > newentry.pos + 1024 )
+                truncate( newentry.pos + 1024 );
+            throw new IOException( "Attempt to close entry after " + size + " of " + headersize + " bytes in CompositeFile " + newentry.name );
+        }
 
-        nextnewentry = raf.getFilePointer();  // pos for next component
+        nextnewentry = ros.getPosition();     // pos for next component
+        newentry.end = nextnewentry;
+        newentry.size = size;
         //System.out.println( "Next new entry at 0x" + Long.toHexString(nextnewentry) );
-        tos.close();                          // adds two blocks of zeros
-        //System.out.println( "           Now at 0x" + Long.toHexString(raf.getFilePointer()) );
+        if ( deferredtrailer )
+        {
+            ros.close();                      // just writes out the last chunk
+            trailerpending = true;
+        }
+        else
+        {
+            tos.close();                      // adds two blocks of zeros and writes out the last chunk
+            trailerpending = false;
+        }
+        //System.out.println( "           Now at 0x" + Long.toHexString(ros.getPosition()) );
+        releaseHeader( wrapper.heldheader, newentry.pos );
+        wrapper.heldheader = null;
         
-        // now update the header with correct size
-        newentry.tararchiveentry.setSize(size);
-        raf.seek( newentry.pos );
-        RandomOutputStream ros = new RandomOutputStream( raf );
+        if ( headersize < 0 )
+        {
+            // now update the header with correct size
+            newentry.tararchiveentry.setSize(size);
+            headerpatcher.patch( newentry.pos, newentry.datapos, size, -1L );
+        }
+        if ( wrapper.reserve > 0 )
+            reserveAfter( newentry, wrapper.reserve );
+        // only now that the header is complete can readers see the entry
+        ComponentEntry old = publish( newentry );
+        wrapper.durable = commitEntry( nextnewentry - newentry.pos );
+        if ( old != null )
+            overwriteInPlace( old, newentry );
+    }
+    
+    /**
+     * Add reserved space after an entry which has just been written at the
+     * end of the archive. The end of archive records go after the space
+     * before the filler entry which covers it, so a crash leaves either
+     * the space or nothing.
+     * 
+     * @param entry The entry.
+     * @param reserve Number of bytes.
+     * @throws IOException 
+     */
+    private void reserveAfter( ComponentEntry entry, long reserve ) throws IOException
+    {
+        long end = entry.end + 512 + TarHeaderScanner.padded( reserve );
+        if ( !deferredtrailer )
+            writeChannel( ByteBuffer.wrap( new byte[1024] ), end );
+        writeFiller( RESERVE_NAME, entry.end, end );
+        trailerpending = deferredtrailer;
+        entry.end = end;
+        nextnewentry = end;
+    }
+    
+    /**
+     * An OutputStream from appendTo(). Data goes straight into the reserved
+     * space except for the record where the filler header is, which is
+     * held until the stream is closed.
+     */
+    public class AppendOutputStream extends OutputStream
+    {
+      final ComponentEntry entry;
+      final long startsize;
+      // where the filler header is
+      final long fillerpos;
+      final byte[] held = new byte[512];
+      long position;
+      CompletableFuture<Void> durable = null;
+      boolean closed = false;
+
+      AppendOutputStream( ComponentEntry entry )
+      {
+        this.entry = entry;
+        this.startsize = entry.size;
+        this.fillerpos = entry.datapos + TarHeaderScanner.padded( entry.size );
+        this.position = entry.datapos + entry.size;
+      }
+
+      /**
+       * Gives a future which completes when the new data is durable
+       * according to the durability policy of the composite file. Only
+       * available once the stream has been closed.
+       * 
+       * @return The future.
+       */
+      public CompletableFuture<Void> getDurableFuture()
+      {
+        if ( durable == null )
+          throw new IllegalStateException( "The entry has not been closed yet." );
+        return durable;
+      }
+
+      @Override
+      public void write( int b ) throws IOException
+      {
+        write( new byte[] { (byte)b }, 0, 1 );
+      }
+
+      @Override
+      public void write( byte[] b, int off, int len ) throws IOException
+      {
+        if ( closed )
+          throw new IOException( "Attempt to write to closed stream in CompositeFile " + entry.name );
+        if ( position + len > entry.end )
+          throw new IOException( "Attempt to append more than the space reserved for entry in CompositeFile " + entry.name );
+        long heldend = fillerpos + 512;
+        int n;
+        while ( len > 0 )
+        {
+          if ( position >= fillerpos && position < heldend )
+          {
+            n = (int)Math.min( len, heldend - position );
+            System.arraycopy( b, off, held, (int)(position - fillerpos), n );
+          }
+          else
+          {
+            n = position < fillerpos ? (int)Math.min( len, fillerpos - position ) : len;
+            writeChannel( ByteBuffer.wrap( b, off, n ), position );
+          }
+          position += n;
+          off += n;
+          len -= n;
+        }
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        if ( closed )
+          return;
+        closed = true;
+        closeAppend( this );
+      }
+    }
+    
+    /**
+     * An OutputStream from getStagedOutputStream(). It holds the data of
+     * its entry apart from the archive until it is closed.
+     */
+    public class StagedOutputStream extends OutputStream
+    {
+      final String name;
+      final boolean replace;
+      byte[] buffer;
+      int bufferlength = 0;
+      long length = 0L;
+      File tempfile = null;
+      FileChannel tempchannel = null;
+      CompletableFuture<Void> durable = null;
+      boolean closed = false;
+
+      StagedOutputStream( String name, boolean replace, int buffersize )
+      {
+        this.name = name;
+        this.replace = replace;
+        this.buffer = new byte[buffersize];
+      }
+
+      @Override
+      public void write( int b ) throws IOException
+      {
+        if ( closed )
+          throw new IOException( "Attempt to use output stream after it was closed." );
+        if ( bufferlength == buffer.length )
+          spill();
+        buffer[bufferlength++] = (byte)b;
+        length++;
+      }
+
+      @Override
+      public void write( byte[] b, int off, int len ) throws IOException
+      {
+        if ( closed )
+          throw new IOException( "Attempt to use output stream after it was closed." );
+        int n;
+        while ( len > 0 )
+        {
+          if ( bufferlength == buffer.length )
+            spill();
+          n = Math.min( len, buffer.length - bufferlength );
+          System.arraycopy( b, off, buffer, bufferlength, n );
+          bufferlength += n;
+          off += n;
+          len -= n;
+          length += n;
+        }
+      }
+
+      @Override
+      public void write( byte[] b ) throws IOException
+      {
+        write( b, 0, b.length );
+      }
+
+      /**
+       * Move the buffered data out to the temporary file.
+       */
+      private void spill() throws IOException
+      {
+        if ( tempchannel == null )
+        {
+          tempfile = File.createTempFile( "staged", ".tmp", file.getAbsoluteFile().getParentFile() );
+          tempchannel = new RandomAccessFile( tempfile, "rw" ).getChannel();
+        }
+        ByteBuffer bb = ByteBuffer.wrap( buffer, 0, bufferlength );
+        while ( bb.hasRemaining() )
+          tempchannel.write( bb );
+        bufferlength = 0;
+      }
+
+      /**
+       * Appends the entry to the archive, waiting for any other writer
+       * to finish first and for staged streams closed earlier to go
+       * ahead. The lock of the composite file is not held while
+       * the data is copied. The temporary file is deleted whether or not
+       * the entry could be added.
+       * 
+       * @throws IOException 
+       */
+      @Override
+      public void close() throws IOException
+      {
+        if ( closed )
+          return;
+        closed = true;
+        try
+        {
+          ReadableByteChannel src;
+          if ( tempchannel == null )
+            src = Channels.newChannel( new ByteArrayInputStream( buffer, 0, bufferlength ) );
+          else
+          {
+            spill();
+            tempchannel.position( 0L );
+            src = tempchannel;
+          }
+          durable = transferEntry( name, length, src, replace, true );
+        }
+        finally
+        {
+          buffer = null;
+          if ( tempchannel != null )
+          {
+            tempchannel.close();
+            tempfile.delete();
+          }
+        }
+      }
+
+      /**
+       * Gives a future which completes when the entry is durable according
+       * to the durability policy of the composite file. Only available once
+       * the stream has been closed.
+       * 
+       * @return The future.
+       */
+      public CompletableFuture<Void> getDurableFuture()
+      {
+        if ( durable == null )
+          throw new IllegalStateException( "The entry has not been closed yet." );
+        return durable;
+      }
+    }
+    
+    /**
+     * A set of entries appended together and published together. Entries
+     * are written one at a time with the streams from getOutputStream()
+     * or with put(). Their data goes through one stream so it is written
+     * in large chunks. Headers of entries whose size was not known are
+     * corrected in one pass at commit. The header of the first entry is
+     * kept blank on disk until then, so a scan of the archive stops
+     * before the batch until it is committed.
+     */
+    public class Batch
+    {
+      final long start;
+      final RandomOutputStream ros;
+      final SeekableTarArchiveOutputStream tos;
+      final int alignment;
+      final ArrayList<TarOutputWrapper> entries = new ArrayList<>();
+      final HashSet<String> names = new HashSet<>();
+      TarOutputWrapper current = null;
+      CompletableFuture<Void> durable = null;
+      boolean failed = false;
+      boolean done = false;
+
+      Batch(long start)
+      {
+        this.start = start;
+        ros = new RandomOutputStream( start, getWriteChunk() );
         tos = new SeekableTarArchiveOutputStream( ros );
-        tos.putArchiveEntry( newentry.tararchiveentry );
-        componentmap.put( newentry.tararchiveentry.getName(), newentry );
+        alignment = dataalignment;
+        tos.setDataAlignment( alignment, start );
+      }
+
+      /**
+       * Stream to write the next entry of the batch. Only one entry of the
+       * batch can be written at a time.
+       * 
+       * @param name The relative path name within the tar archive.
+       * @param replace Should the entry go ahead even if there is already an entry with the given name.
+       * @return The stream.
+       * @throws IOException 
+       */
+      public TarOutputWrapper getOutputStream( String name, boolean replace ) throws IOException
+      {
+        return getOutputStream( name, -1L, replace );
+      }
+
+      /**
+       * Stream to write the next entry of the batch when its size is known.
+       * 
+       * @param name The relative path name within the tar archive.
+       * @param size The number of bytes that will be written.
+       * @param replace Should the entry go ahead even if there is already an entry with the given name.
+       * @return The stream.
+       * @throws IOException 
+       */
+      public TarOutputWrapper getOutputStream( String name, long size, boolean replace ) throws IOException
+      {
+        synchronized ( CompositeFile.this )
+        {
+          check();
+          if ( current != null )
+            throw new IOException( "Attempt to start batch entry before previous entry has been closed." );
+          if ( names.contains( name ) && !replace )
+            throw new IOException( "Component already in CompositeFile " + name );
+          TarOutputWrapper wrapper = new TarOutputWrapper( newEntry( name, replace, ros.getPosition() ),
+                                                           size < 0 ? getStagingBuffer() : null );
+          wrapper.batch = this;
+          wrapper.declaredsize = size;
+          current = wrapper;
+          if ( wrapper.staged == null )
+            CompositeFile.this.startEntry( wrapper, size < 0 ? TarConstants.MAXSIZE : size );
+          return wrapper;
+        }
+      }
+
+      /**
+       * Add an entry with the given content to the batch.
+       * 
+       * @param name The relative path name within the tar archive.
+       * @param data The content.
+       * @param replace Should the entry go ahead even if there is already an entry with the given name.
+       * @throws IOException 
+       */
+      public void put( String name, byte[] data, boolean replace ) throws IOException
+      {
+        TarOutputWrapper out = getOutputStream( name, data.length, replace );
+        out.write( data );
+        out.close();
+      }
+
+      /**
+       * Gives a future which completes when the whole batch is durable.
+       * Only available once the batch has been committed.
+       * 
+       * @return The future.
+       */
+      public CompletableFuture<Void> getDurableFuture()
+      {
+        if ( durable == null )
+          throw new IllegalStateException( "The batch has not been committed yet." );
+        return durable;
+      }
+
+      private void check() throws IOException
+      {
+        if ( done )
+          throw new IOException( "Attempt to use batch after it was committed or aborted." );
+        if ( failed )
+          throw new IOException( "Attempt to use batch after an entry failed." );
+      }
+
+      /**
+       * Write the header of an entry.
+       */
+      void startEntry( TarOutputWrapper wrapper ) throws IOException
+      {
+        ComponentEntry entry = wrapper.entry;
+        tos.putArchiveEntry( entry.tararchiveentry );
+        entry.datapos = ros.getPosition();
+        if ( entry.pos == start )
+          ros.zero( entry.pos, entry.datapos );    // written for real at commit
+        wrapper.tos = tos;
+        wrapper.ros = ros;
+      }
+
+      /**
+       * Called when the stream of an entry in the batch is closed.
+       */
+      void closeEntry( TarOutputWrapper wrapper ) throws IOException
+      {
+        synchronized ( CompositeFile.this )
+        {
+          current = null;
+          if ( done || failed )
+            return;
+          ComponentEntry entry = wrapper.entry;
+          long headersize = wrapper.declaredsize;
+          if ( wrapper.staged != null )
+          {
+            headersize = wrapper.stagedlength;
+            CompositeFile.this.startEntry( wrapper, headersize );
+            tos.write( wrapper.staged, 0, wrapper.stagedlength );
+            wrapper.staged = null;
+          }
+          tos.closeArchiveEntry();
+          entry.size = tos.getEntrySize();
+          entry.end = ros.getPosition();
+          if ( headersize >= 0 && entry.size != headersize )
+          {
+            failed = true;
+            throw new IOException( "Attempt to close entry after " + entry.size + " of " + headersize + " bytes in CompositeFile " + entry.name );
+          }
+          wrapper.declaredsize = headersize;
+          entries.add( wrapper );
+          names.add( entry.name );
+        }
+      }
+
+      /**
+       * Completes the batch and makes all its entries visible together.
+       * 
+       * @return A future that completes when the batch is durable.
+       * @throws IOException 
+       */
+      public CompletableFuture<Void> commit() throws IOException
+      {
+        synchronized ( CompositeFile.this )
+        {
+          check();
+          if ( current != null )
+            throw new IOException( "Attempt to commit batch before entry has been closed." );
+          done = true;
+          currentbatch = null;
+          CompositeFile.this.notifyAll();
+          long end = ros.getPosition();
+          if ( deferredtrailer )
+          {
+            ros.close();
+            trailerpending = true;
+          }
+          else
+          {
+            tos.close();
+            trailerpending = false;
+          }
+          if ( entries.isEmpty() )
+          {
+            durable = CompletableFuture.completedFuture( null );
+            return durable;
+          }
+          // the data must be on the device before the batch becomes visible
+          if ( durability == SYNC_ON_ENTRY_CLOSE || durability == GROUP_COMMIT )
+            channel.force( false );
+          // correct headers, the first last because it makes the batch visible
+          for ( int i = entries.size() - 1; i >= 0; i-- )
+          {
+            TarOutputWrapper wrapper = entries.get( i );
+            if ( wrapper.declaredsize >= 0 && wrapper.entry.pos != start )
+              continue;
+            ComponentEntry entry = wrapper.entry;
+            entry.tararchiveentry.setSize( entry.size );
+            if ( entry.pos != start )
+            {
+              headerpatcher.patch( entry.pos, entry.datapos, entry.size, -1L );
+              continue;
+            }
+            // the first header was left as zeros so it is written in full
+            SeekableTarArchiveOutputStream header = new SeekableTarArchiveOutputStream( new RandomOutputStream( entry.pos, null ) );
+            header.setDataAlignment( alignment, entry.pos );
+            header.putArchiveEntry( entry.tararchiveentry );
+          }
+          nextnewentry = end;
+          for ( TarOutputWrapper wrapper : entries )
+            publish( wrapper.entry );
+          durable = commitEntry( end - start );
+          return durable;
+        }
+      }
+
+      /**
+       * Abandons the batch. None of its entries will be visible.
+       * 
+       * @throws IOException 
+       */
+      public void abort() throws IOException
+      {
+        synchronized ( CompositeFile.this )
+        {
+          if ( done )
+            return;
+          done = true;
+          currentbatch = null;
+          CompositeFile.this.notifyAll();
+          // the end of archive goes back where it was and the rest is dropped
+          RandomOutputStream eof = new RandomOutputStream( start, null );
+          eof.write( zeroblock );
+          eof.write( zeroblock );
+          eof.close();
+          trailerpending = false;
+          if ( dataend.get() > start + 1024 )
+            truncate( start + 1024 );
+        }
+      }
     }
     
     /**
@@ -281,17 +2998,67 @@ public class CompositeFile
      * tar archive so that the close() method can be intercepted and so
      * closeOutputStream() is called at the right point.
      */
-    class TarOutputWrapper extends OutputStream
+    public class TarOutputWrapper extends OutputStream
     {
+      final ComponentEntry entry;
       SeekableTarArchiveOutputStream tos;
+      RandomOutputStream ros;
+      CompletableFuture<Void> durable = null;
+      Batch batch = null;
+      // data held back until the size is known or there is too much
+      byte[] staged;
+      int stagedlength = 0;
+      long declaredsize = -1L;
+      // space to reserve after the entry
+      long reserve = 0L;
+      // first header record, written after the data when preallocating
+      byte[] heldheader = null;
+      boolean closed = false;
+
+      /**
+       * Construct wrapper. The streams are set when the entry is started.
+       * @param entry The new entry.
+       * @param staged Buffer to hold data in until the stream is closed or
+       * it is full. Null to start the entry straight away.
+       */
+      TarOutputWrapper(ComponentEntry entry, byte[] staged)
+      {
+        this.entry = entry;
+        this.staged = staged;
+      }
+
+      /**
+       * Too much data to stage, start the entry with a provisional header
+       * and write what was staged.
+       * 
+       * @throws IOException 
+       */
+      private void spill()
+              throws IOException
+      {
+        synchronized ( CompositeFile.this )
+        {
+          startEntry( this, TarConstants.MAXSIZE );
+        }
+        byte[] b = staged;
+        staged = null;
+        tos.write(b, 0, stagedlength);
+      }
 
       /**
-       * Construct wrapper
-       * @param tos The stream which will put data in the tar archive.
+       * Gives a future which completes when the entry written by this
+       * stream is durable according to the durability policy of the
+       * composite file. Only available once the stream has been closed.
+       * 
+       * @return The future.
        */
-      public TarOutputWrapper(SeekableTarArchiveOutputStream tos)
+      public CompletableFuture<Void> getDurableFuture()
       {
-        this.tos = tos;
+        if ( batch != null )
+          return batch.getDurableFuture();
+        if ( durable == null )
+          throw new IllegalStateException( "The entry has not been closed yet." );
+        return durable;
       }
 
       /**
@@ -304,18 +3071,28 @@ public class CompositeFile
       public void close()
               throws IOException
       {
-        closeOutputStream();
+        if ( closed )
+          return;
+        closed = true;
+        if ( batch != null )
+          batch.closeEntry( this );
+        else
+          closeOutputStream();
       }
 
       /**
-       * Just hands on to wrapped class.
+       * Hands on to wrapped class and writes out any complete records
+       * that are waiting to be written in a chunk.
        * @throws IOException 
        */
       @Override
       public void flush()
               throws IOException
       {
-        tos.flush(); //To change body of generated methods, choose Tools | Templates.
+        if ( staged != null )
+          return;
+        tos.flush();
+        ros.flush();
       }
 
       /**
@@ -330,6 +3107,16 @@ public class CompositeFile
       public void write(byte[] b, int off, int len)
               throws IOException
       {
+        if ( staged != null )
+        {
+          if ( stagedlength + len <= staged.length )
+          {
+            System.arraycopy(b, off, staged, stagedlength, len);
+            stagedlength += len;
+            return;
+          }
+          spill();
+        }
         tos.write(b, off, len); //To change body of generated methods, choose Tools | Templates.
       }
 
@@ -343,7 +3130,7 @@ public class CompositeFile
       public void write(byte[] b)
               throws IOException
       {
-        tos.write(b); //To change body of generated methods, choose Tools | Templates.
+        write(b, 0, b.length);
       }
 
       /**
@@ -356,40 +3143,82 @@ public class CompositeFile
       public void write(int b)
               throws IOException
       {
+        if ( staged != null )
+        {
+          if ( stagedlength < staged.length )
+          {
+            staged[stagedlength++] = (byte)b;
+            return;
+          }
+          spill();
+        }
         tos.write(b);
       }
     }
 
     /**
-     * Provides RandomOutputFile with InputStream interface.
+     * Provides an OutputStream interface onto the file channel. Each stream
+     * keeps its own position and uses positional writes so it does not
+     * depend on, or disturb, a shared file pointer. If a chunk buffer is
+     * given, data is gathered in it and written in chunks that end on
+     * multiples of the buffer size in the file.
      */
     class RandomOutputStream extends OutputStream
     {
-        RandomAccessFile rafile;
+        long position;
+        final byte[] chunk;
+        long chunkstart;
         boolean dead=false;
-        public RandomOutputStream(RandomAccessFile rafile)
+        
+        /**
+         * 
+         * @param position The file offset where the first byte will be written.
+         * @param chunk Buffer to coalesce writes in or null to write straight through.
+         */
+        public RandomOutputStream(long position, byte[] chunk)
+        {
+            this.position = position;
+            this.chunk = chunk;
+            this.chunkstart = position;
+        }
+
+        /**
+         * 
+         * @return The file offset where the next byte will be written.
+         */
+        public long getPosition()
         {
-            this.rafile = rafile;
+            return position;
         }
 
         @Override
         public void write(int b) throws IOException
         {
-            if ( dead )
-                throw new IOException( "Attempt to use output stream after it was closed." );
-            rafile.write(b);
+            write( new byte[] { (byte)b }, 0, 1 );
         }
 
         @Override
         public void close() throws IOException
         {
+            if ( dead )
+                return;
+            flush();
             dead=true;
         }
 
+        /**
+         * Writes out whatever is waiting in the chunk buffer.
+         * 
+         * @throws IOException 
+         */
         @Override
         public void flush() throws IOException
         {
-            // nop
+            if ( dead )
+                throw new IOException( "Attempt to use output stream after it was closed." );
+            if ( position > chunkstart )
+                writeChannel( ByteBuffer.wrap( chunk, 0, (int)(position - chunkstart) ), chunkstart );
+            chunkstart = position;
         }
 
         @Override
@@ -397,36 +3226,157 @@ public class CompositeFile
         {
             if ( dead )
                 throw new IOException( "Attempt to use output stream after it was closed." );
-            rafile.write(b, off, len);
+            if ( chunk == null )
+            {
+                writeChannel( ByteBuffer.wrap(b, off, len), position );
+                position += len;
+                chunkstart = position;
+                return;
+            }
+            
+            int n;
+            long boundary;
+            while ( len > 0 )
+            {
+                // the chunk ends at the next multiple of the chunk size
+                boundary = (chunkstart / chunk.length + 1) * chunk.length;
+                if ( position == chunkstart && len >= boundary - position )
+                {
+                    // nothing buffered and enough data to reach the boundary
+                    n = (int)(boundary - position);
+                    n += ((len - n) / chunk.length) * chunk.length;
+                    writeChannel( ByteBuffer.wrap(b, off, n), position );
+                    position += n;
+                    chunkstart = position;
+                }
+                else
+                {
+                    n = (int)Math.min( len, boundary - position );
+                    System.arraycopy( b, off, chunk, (int)(position - chunkstart), n );
+                    position += n;
+                    if ( position == boundary )
+                        flush();
+                }
+                off += n;
+                len -= n;
+            }
         }
 
         @Override
         public void write(byte[] b) throws IOException
         {
-            if ( dead )
-                throw new IOException( "Attempt to use output stream after it was closed." );
-            rafile.write(b);
+            write(b, 0, b.length);
+        }
+
+        /**
+         * Replace bytes that have already been written with zeros, in the
+         * chunk buffer if they are still there or else in the file.
+         * 
+         * @param from File offset of the first byte.
+         * @param to File offset just past the last byte, no more than the position.
+         * @throws IOException 
+         */
+        void zero(long from, long to) throws IOException
+        {
+            long split = Math.max( from, Math.min( to, chunkstart ) );
+            if ( split < to )
+                Arrays.fill( chunk, (int)(split - chunkstart), (int)(to - chunkstart), (byte)0 );
+            if ( from < split )
+                writeChannel( ByteBuffer.wrap( new byte[(int)(split - from)] ), from );
+        }
+
+        /**
+         * Take a copy of bytes that have already been written and replace
+         * them with zeros, so they can be written again later.
+         * 
+         * @param from File offset of the first byte.
+         * @param held Buffer for the copy, reaching no further than the position.
+         * @throws IOException 
+         */
+        void hold(long from, byte[] held) throws IOException
+        {
+            long to = from + held.length;
+            long split = Math.max( from, Math.min( to, chunkstart ) );
+            if ( from < split )
+                readChannelFully( ByteBuffer.wrap( held, 0, (int)(split - from) ), from );
+            if ( split < to )
+                System.arraycopy( chunk, (int)(split - chunkstart), held, (int)(split - from), (int)(to - split) );
+            zero( from, to );
         }
+    }
 
+    /**
+     * Writes the whole buffer at the given position.
+     * 
+     * @param src Data to write.
+     * @param position The file offset to write at.
+     * @throws IOException 
+     */
+    void writeChannel( ByteBuffer src, long position ) throws IOException
+    {
+        if ( preallocation > 0L && position + src.remaining() > allocatedlength )
+            preallocate( position + src.remaining() );
+        while ( src.hasRemaining() )
+            position += channel.write( src, position );
+        if ( position > dataend.get() )
+            dataend.accumulateAndGet( position, Math::max );
+        if ( durability == SYNC_EACH_WRITE )
+            channel.force( false );
     }
 
 
     /**
-     * Provides RandomAccessFile with InputStream interface.
+     * Provides an InputStream interface onto the file channel. Each stream
+     * keeps its own position and uses positional reads so any number of
+     * them can be used without a shared file pointer. Data is read from the
+     * file in blocks which never extend past the limit of the stream, which
+     * is normally the end of an entry.
      */
     class RandomInputStream extends InputStream
     {
-        RandomAccessFile raf;
-        long mark = 0L;
+        long position;
+        final long limit;
+        final byte[] buffer;
+        long bufferstart = 0L;
+        int bufferlength = 0;
         boolean dead=false;
+        boolean registered=false;
         
         /**
          * 
-         * @param raf 
+         * @param position The file offset of the first byte to read.
+         * @param limit The file offset just past the last byte that may be read.
          */
-        public RandomInputStream(RandomAccessFile raf)
+        public RandomInputStream(long position, long limit)
         {
-            this.raf = raf;
+            this.position = position;
+            this.limit = limit;
+            // no point in a buffer bigger than the data it can hold
+            long size = Math.min( readbuffersize, limit - position );
+            this.buffer = new byte[ size > 0 ? (int)size : 1 ];
+        }
+
+        /**
+         * For subclasses that don't read through the buffer.
+         * 
+         * @param position The file offset of the first byte to read.
+         * @param limit The file offset just past the last byte that may be read.
+         * @param buffer The buffer to use.
+         */
+        RandomInputStream(long position, long limit, byte[] buffer)
+        {
+            this.position = position;
+            this.limit = limit;
+            this.buffer = buffer;
+        }
+
+        /**
+         * 
+         * @return The file offset of the next byte to be read.
+         */
+        public long getPosition()
+        {
+            return position;
         }
 
         /**
@@ -466,12 +3416,16 @@ public class CompositeFile
         @Override
         public void close() throws IOException
         {
-            closeInputStream();
+            if ( dead )
+                return;
+            dead = true;
+            if ( registered )
+                closeInputStream( this );
         }
 
         /**
          * 
-         * @return
+         * @return The number of bytes left before the limit of the stream.
          * @throws IOException 
          */
         @Override
@@ -479,13 +3433,17 @@ public class CompositeFile
         {
             if ( dead )
                 throw new IOException( "Attempt to use input stream after it was closed." );
-            return 0;
+            if ( position >= limit )
+                return 0;
+            return (int)Math.min( limit - position, Integer.MAX_VALUE );
         }
 
         /**
+         * Moves the position forward without reading. Bytes already in
+         * the buffer are kept in case the new position is still inside it.
          * 
          * @param n
-         * @return
+         * @return The number of bytes actually skipped.
          * @throws IOException 
          */
         @Override
@@ -493,9 +3451,10 @@ public class CompositeFile
         {
             if ( dead )
                 throw new IOException( "Attempt to use input stream after it was closed." );
-            long pos = raf.getFilePointer();
-            pos = pos + n;
-            raf.seek(pos);
+            if ( n <= 0 || position >= limit )
+                return 0;
+            n = Math.min( n, limit - position );
+            position = position + n;
             return n;
         }
 
@@ -509,7 +3468,12 @@ public class CompositeFile
         {
             if ( dead )
                 throw new IOException( "Attempt to use input stream after it was closed." );
-            return raf.read();
+            if ( position < bufferstart || position >= bufferstart + bufferlength )
+            {
+                if ( fill() <= 0 )
+                    return -1;
+            }
+            return buffer[(int)(position++ - bufferstart)] & 0xff;
         }
 
         /**
@@ -525,7 +3489,29 @@ public class CompositeFile
         {
             if ( dead )
                 throw new IOException( "Attempt to use input stream after it was closed." );
-            return raf.read(b, off, len); //To change body of generated methods, choose Tools | Templates.
+            if ( len == 0 )
+                return 0;
+            if ( position >= limit )
+                return -1;
+            len = (int)Math.min( len, limit - position );
+            
+            if ( position < bufferstart || position >= bufferstart + bufferlength )
+            {
+                // big requests bypass the buffer
+                if ( len >= buffer.length )
+                {
+                    int n = readChannel( ByteBuffer.wrap(b, off, len), position );
+                    if ( n > 0 )
+                        position += n;
+                    return n;
+                }
+                if ( fill() <= 0 )
+                    return -1;
+            }
+            int n = (int)Math.min( len, bufferstart + bufferlength - position );
+            System.arraycopy( buffer, (int)(position - bufferstart), b, off, n );
+            position += n;
+            return n;
         }
 
         /**
@@ -536,21 +3522,537 @@ public class CompositeFile
          */
         @Override
         public int read(byte[] b) throws IOException
+        {
+            return read(b, 0, b.length);
+        }
+        
+        /**
+         * Loads the buffer with data starting at the current position.
+         * 
+         * @return Number of bytes loaded or -1 at end of file.
+         * @throws IOException 
+         */
+        private int fill() throws IOException
+        {
+            bufferlength = 0;
+            if ( position >= limit )
+                return -1;
+            int len = (int)Math.min( buffer.length, limit - position );
+            int n = readChannel( ByteBuffer.wrap(buffer, 0, len), position );
+            if ( n > 0 )
+            {
+                bufferstart = position;
+                bufferlength = n;
+            }
+            return n;
+        }
+    }
+    
+    /**
+     * A range of the file that is being read.
+     */
+    static class ReadPin
+    {
+        final long start;
+        final long end;
+
+        ReadPin( long start, long end )
+        {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Online compaction. It works along the archive keeping track of where
+     * the free space starts, which is where the next entry that is still
+     * current should go.
+     */
+    private class Compaction
+    {
+        final long bytespersecond;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect( COMPACT_CHUNK_SIZE );
+        final long started = System.nanoTime();
+        long moved = 0L;
+        // entries only move by multiples of this
+        final int alignment;
+        // everything before this is current entries
+        long free;
+
+        Compaction( long bytespersecond, long free, int alignment )
+        {
+            this.bytespersecond = bytespersecond;
+            this.free = free;
+            this.alignment = alignment;
+        }
+
+        void run() throws IOException
+        {
+            int[] slots;
+            long[] positions;
+            while ( true )
+            {
+                synchronized ( CompositeFile.this )
+                {
+                    slots = componentindex.slotsInFileOrder( free );
+                    if ( slots.length == 0 )
+                    {
+                        // trimming needs the end of the archive to stay still
+                        waitForWriter();
+                        slots = componentindex.slotsInFileOrder( free );
+                        if ( slots.length == 0 )
+                        {
+                            // writers stay out while trim() waits for readers
+                            compacting = true;
+                            try
+                            {
+                                trim();
+                            }
+                            finally
+                            {
+                                compacting = false;
+                                CompositeFile.this.notifyAll();
+                            }
+                            return;
+                        }
+                    }
+                    positions = new long[slots.length];
+                    for ( int i=0; i<slots.length; i++ )
+                        positions[i] = componentindex.getPos( slots[i] );
+                }
+                for ( int i=0; i<slots.length; i++ )
+                    compactEntry( slots[i], positions[i] );
+            }
+        }
+
+        /**
+         * Move one entry to the start of the free space, or to the end of
+         * the archive if it does not fit.
+         * 
+         * @param slot The entry.
+         * @param pos Where it was when the entries were put in order.
+         */
+        void compactEntry( int slot, long pos ) throws IOException
+        {
+            long datapos, end;
+            synchronized ( CompositeFile.this )
+            {
+                // if it has been replaced the new one comes round next time
+                if ( componentindex.getPos( slot ) != pos )
+                    return;
+                datapos = componentindex.getDataPos( slot );
+                end = componentindex.getEnd( slot );
+            }
+            // keep the data at the same offset from the alignment
+            long to = alignment > 0 ? free + (pos - free) % alignment : free;
+            if ( pos == to )
+            {
+                free = end;
+                return;
+            }
+            long length = end - pos;
+            if ( pos - to >= length )
+                slide( slot, pos, datapos, end, to );
+            else
+                toTail( slot, pos, datapos, end );
+        }
+
+        void slide( int slot, long pos, long datapos, long end, long to ) throws IOException
+        {
+            long length = end - pos;
+            synchronized ( CompositeFile.this )
+            {
+                waitForReaders( free, to + length + 512 );
+            }
+            // the copy goes into the data of a filler entry and a second
+            // filler covers whatever space is left after it, a third any
+            // space left in front to keep the alignment
+            writeFree( to, pos );
+            if ( pos - to > length )
+                writeFree( to + length, pos );
+            if ( to > free )
+                writeFree( free, to );
+            copy( pos + 512, to + 512, length - 512 );
+            barrier();
+            copy( pos, to, 512 );
+            barrier();
+            synchronized ( CompositeFile.this )
+            {
+                if ( componentindex.getPos( slot ) != pos )
+                {
+                    // replaced meanwhile so the copy is not wanted
+                    writeFree( to, pos );
+                    return;
+                }
+                componentindex.move( slot, to, to + datapos - pos, to + length );
+                deadspace.remove( to, to + length );
+                deadspace.add( pos, end );
+                waitForReaders( to + length, to + length + 512 );
+            }
+            // the old copy becomes free space
+            writeFree( to + length, end );
+            free = to + length;
+        }
+
+        void toTail( int slot, long pos, long datapos, long end ) throws IOException
+        {
+            long length = end - pos;
+            long start, to;
+            synchronized ( CompositeFile.this )
+            {
+                waitForWriter();
+                if ( componentindex.getPos( slot ) != pos )
+                    return;
+                compacting = true;
+                start = nextnewentry;
+                to = alignment > 0 ? start + Math.floorMod( pos - start, (long)alignment ) : start;
+            }
+            try
+            {
+                // the end of archive records stay at 'to' until the start is
+                // copied, behind a filler if the copy is moved up to align it
+                long head = Math.min( length, 1024L );
+                if ( to > start )
+                    writeChannel( ByteBuffer.wrap( new byte[1024] ), to );
+                copy( pos + head, to + head, length - head );
+                writeChannel( ByteBuffer.wrap( new byte[1024] ), to + length );
+                if ( to > start )
+                    writeFree( start, to );
+                barrier();
+                copy( pos, to, head );
+                barrier();
+                synchronized ( CompositeFile.this )
+                {
+                    nextnewentry = to + length;
+                    componentindex.move( slot, to, to + datapos - pos, to + length );
+                    deadspace.add( start, to );
+                    deadspace.add( pos, end );
+                }
+            }
+            finally
+            {
+                synchronized ( CompositeFile.this )
+                {
+                    compacting = false;
+                    CompositeFile.this.notifyAll();
+                }
+            }
+            // the old copy becomes part of the free space
+            synchronized ( CompositeFile.this )
+            {
+                waitForReaders( free, free + 512 );
+            }
+            writeFree( free, end );
+        }
+
+        /**
+         * Put the end of the archive after the last entry and shorten the
+         * file. Called holding the lock with nothing being written and
+         * compacting set so that nothing starts while readers are waited
+         * for.
+         */
+        void trim() throws IOException
+        {
+            if ( free == nextnewentry )
+                return;
+            waitForReaders( free, raf.length() );
+            RandomOutputStream eof = new RandomOutputStream( free, null );
+            eof.write( zeroblock );
+            eof.write( zeroblock );
+            eof.close();
+            trailerpending = false;
+            nextnewentry = free;
+            // entries replaced behind the compaction leave holes it has passed
+            deadspace.remove( free, Long.MAX_VALUE );
+            truncate( free + 1024 );
+            synchronized ( mappings )
+            {
+                mappings.clear();
+            }
+            if ( durability != OS_MANAGED )
+                channel.force( true );
+        }
+
+        /**
+         * Copy data lower down or to the end of the file, in chunks so
+         * that the rate can be limited.
+         */
+        void copy( long from, long to, long length ) throws IOException
+        {
+            int n;
+            for ( long done = 0L; done < length; done += n )
+            {
+                n = (int)Math.min( buffer.capacity(), length - done );
+                buffer.clear();
+                buffer.limit( n );
+                readChannelFully( buffer, from + done );
+                buffer.flip();
+                writeChannel( buffer, to + done );
+                moved += n;
+                throttle();
+            }
+        }
+
+        void throttle() throws InterruptedIOException
+        {
+            if ( bytespersecond <= 0 )
+                return;
+            long due = started + moved * 1000000000L / bytespersecond;
+            long wait = due - System.nanoTime();
+            if ( wait <= 0 )
+                return;
+            try
+            {
+                Thread.sleep( wait / 1000000L, (int)(wait % 1000000L) );
+            }
+            catch ( InterruptedException ex )
+            {
+                throw new InterruptedIOException( "Interrupted compacting CompositeFile " + canonical );
+            }
+        }
+    }
+
+    /**
+     * A read only channel onto the content of one entry. It keeps its own
+     * position and uses positional reads, like RandomInputStream.
+     */
+    class EntryChannel implements SeekableByteChannel
+    {
+        final long datapos;
+        final long size;
+        final ReadPin pin;
+        long position = 0L;
+        boolean open = true;
+
+        EntryChannel( long datapos, long size, ReadPin pin )
+        {
+            this.datapos = datapos;
+            this.size = size;
+            this.pin = pin;
+        }
+
+        @Override
+        public int read( ByteBuffer dst ) throws IOException
+        {
+            if ( !open )
+                throw new ClosedChannelException();
+            if ( position >= size )
+                return -1;
+            ByteBuffer slice = dst.duplicate();
+            slice.limit( slice.position() + (int)Math.min( slice.remaining(), size - position ) );
+            int n = readChannel( slice, datapos + position );
+            if ( n < 0 )
+                throw new EOFException( "Unexpected end of composite file." );
+            dst.position( slice.position() );
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int write( ByteBuffer src ) throws IOException
+        {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException
+        {
+            if ( !open )
+                throw new ClosedChannelException();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position( long newposition ) throws IOException
+        {
+            if ( !open )
+                throw new ClosedChannelException();
+            if ( newposition < 0 )
+                throw new IllegalArgumentException( "Position cannot be negative." );
+            position = newposition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException
+        {
+            if ( !open )
+                throw new ClosedChannelException();
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate( long size ) throws IOException
+        {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if ( !open )
+                return;
+            open = false;
+            unpin( pin );
+        }
+    }
+
+    /**
+     * Reads an entry from a memory mapped view of its data instead of
+     * from the file.
+     */
+    class MappedInputStream extends RandomInputStream
+    {
+        final long start;
+        final ByteBuffer view;
+
+        /**
+         * 
+         * @param position The file offset of the first byte to read.
+         * @param view The data from position up to the limit of the stream.
+         */
+        MappedInputStream(long position, ByteBuffer view)
+        {
+            super( position, position + view.remaining(), new byte[0] );
+            this.start = position;
+            this.view = view;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if ( dead )
+                throw new IOException( "Attempt to use input stream after it was closed." );
+            if ( position >= limit )
+                return -1;
+            return view.get( (int)(position++ - start) ) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
         {
             if ( dead )
                 throw new IOException( "Attempt to use input stream after it was closed." );
-            return raf.read(b); //To change body of generated methods, choose Tools | Templates.
+            if ( len == 0 )
+                return 0;
+            if ( position >= limit )
+                return -1;
+            len = (int)Math.min( len, limit - position );
+            // skip() only moves the position so catch the view up
+            view.position( (int)(position - start) );
+            view.get( b, off, len );
+            position += len;
+            return len;
+        }
+    }
+    
+    /**
+     * Get a read only view of part of the file from a memory mapping. Small
+     * ranges come from a window which starts at a multiple of
+     * MAP_WINDOW_SIZE and is up to twice that long, so any range no longer
+     * than MAP_WINDOW_SIZE fits in one window and files bigger than 2GiB
+     * can be mapped. When the file has grown past the end of a window it
+     * is mapped again. Longer ranges get their own mapping.
+     * 
+     * @param position File offset of the range.
+     * @param length Length of the range.
+     * @return A buffer with position zero and the length as its limit.
+     * @throws IOException 
+     */
+    ByteBuffer map( long position, long length ) throws IOException
+    {
+        if ( length > MAP_WINDOW_SIZE )
+        {
+            if ( length > Integer.MAX_VALUE )
+                throw new IOException( "Attempt to map more than 2GiB of composite file." );
+            return channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+        }
+        long window = position / MAP_WINDOW_SIZE;
+        long windowstart = window * MAP_WINDOW_SIZE;
+        MappedByteBuffer mapping;
+        synchronized ( mappings )
+        {
+            mapping = mappings.get( window );
+            if ( mapping == null || mapping.capacity() < position + length - windowstart )
+            {
+                long windowlength = Math.min( 2L * MAP_WINDOW_SIZE, channel.size() - windowstart );
+                if ( windowlength < position + length - windowstart )
+                    throw new EOFException( "Unexpected end of composite file." );
+                mapping = channel.map( FileChannel.MapMode.READ_ONLY, windowstart, windowlength );
+                mappings.put( window, mapping );
+            }
+        }
+        ByteBuffer view = mapping.duplicate();
+        view.position( (int)(position - windowstart) );
+        view.limit( (int)(position + length - windowstart) );
+        return view.slice();
+    }
+    
+    /**
+     * Positional read which is counted.
+     * 
+     * @param dst Where to put the data.
+     * @param position The file offset to read from.
+     * @return Number of bytes read or -1 at end of file.
+     * @throws IOException 
+     */
+    int readChannel( ByteBuffer dst, long position ) throws IOException
+    {
+        channelreads.incrementAndGet();
+        return channel.read( dst, position );
+    }
+    
+    /**
+     * Fill the array from the given position.
+     * 
+     * @param b Where to put the data.
+     * @param position The file offset to read from.
+     * @throws IOException If the end of file is reached first.
+     */
+    void readChannelFully( byte[] b, long position ) throws IOException
+    {
+        readChannelFully( ByteBuffer.wrap( b ), position );
+    }
+    
+    /**
+     * Fill the remaining space in a buffer from the given position.
+     * 
+     * @param dst Where to put the data.
+     * @param position The file offset to read from.
+     * @throws IOException If the end of file is reached first.
+     */
+    void readChannelFully( ByteBuffer dst, long position ) throws IOException
+    {
+        int n;
+        while ( dst.hasRemaining() )
+        {
+            n = readChannel( dst, position );
+            if ( n < 0 )
+                throw new EOFException( "Unexpected end of composite file." );
+            position += n;
         }
     }
     
     /**
      * Simple data structure to hold additional data on TarArchiveEntry.
-     * Built when indexing the tar file and as new entries are made.
+     * Used while indexing the tar file and as new entries are made, then
+     * copied into the ComponentIndex. The index does not keep the
+     * TarArchiveEntry, see getTarArchiveEntry().
      */
-    class ComponentEntry
+    static class ComponentEntry
     {
+      String name;
       public long pos;
       long datapos = -1L;
+      long end = -1L;       // file offset just past the padded data
+      long size = 0L;
+      long mtime = 0L;      // milliseconds
       TarArchiveEntry tararchiveentry;
 
       /**
@@ -560,8 +4062,21 @@ public class CompositeFile
        */
       public ComponentEntry(long pos, TarArchiveEntry tararchiveentry)
       {
-          this.pos = pos;
+          this( tararchiveentry.getName(), pos );
           this.tararchiveentry = tararchiveentry;
+          this.size = tararchiveentry.getSize();
+          this.mtime = tararchiveentry.getModTime().getTime();
+      }        
+
+      /**
+       * 
+       * @param name
+       * @param pos 
+       */
+      public ComponentEntry(String name, long pos)
+      {
+          this.name = name;
+          this.pos = pos;
       }        
     }
 }
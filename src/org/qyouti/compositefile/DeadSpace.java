@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The ranges of a composite file which hold nothing current - entries that
+ * have been replaced or deleted, tombstones and fillers. Ranges that touch
+ * are merged so there is one range per hole. Not thread safe -
+ * CompositeFile synchronizes.
+ */
+class DeadSpace
+{
+    // start of each range to its end
+    private final TreeMap<Long,Long> ranges = new TreeMap<>();
+    private long total = 0L;
+
+    void clear()
+    {
+        ranges.clear();
+        total = 0L;
+    }
+
+    /**
+     * @return Number of dead bytes.
+     */
+    long total()
+    {
+        return total;
+    }
+
+    /**
+     * @return Number of separate holes.
+     */
+    int count()
+    {
+        return ranges.size();
+    }
+
+    /**
+     * @return File offset of the first hole or -1 if there are none.
+     */
+    long first()
+    {
+        return ranges.isEmpty() ? -1L : ranges.firstKey();
+    }
+
+    /**
+     * Mark a range dead.
+     *
+     * @param start File offset.
+     * @param end File offset after the range.
+     */
+    void add( long start, long end )
+    {
+        if ( start >= end )
+            return;
+        remove( start, end );
+        total += end - start;
+        // join on to ranges that touch
+        Map.Entry<Long,Long> before = ranges.lowerEntry( start );
+        if ( before != null && before.getValue() == start )
+        {
+            ranges.remove( before.getKey() );
+            start = before.getKey();
+        }
+        Long after = ranges.remove( end );
+        if ( after != null )
+            end = after;
+        ranges.put( start, end );
+    }
+
+    /**
+     * Mark a range as being in use.
+     *
+     * @param start File offset.
+     * @param end File offset after the range.
+     */
+    void remove( long start, long end )
+    {
+        if ( start >= end )
+            return;
+        Map.Entry<Long,Long> before = ranges.lowerEntry( start );
+        if ( before != null && before.getValue() > start )
+            start = split( before.getKey(), before.getValue(), start, end );
+        Map.Entry<Long,Long> range;
+        while ( (range = ranges.ceilingEntry( start )) != null && range.getKey() < end )
+            split( range.getKey(), range.getValue(), start, end );
+    }
+
+    /**
+     * Take the overlap with start to end out of one range.
+     */
+    private long split( long rangestart, long rangeend, long start, long end )
+    {
+        ranges.remove( rangestart );
+        total -= rangeend - rangestart;
+        if ( rangestart < start )
+        {
+            ranges.put( rangestart, start );
+            total += start - rangestart;
+        }
+        if ( rangeend > end )
+        {
+            ranges.put( end, rangeend );
+            total += rangeend - end;
+        }
+        return start;
+    }
+}
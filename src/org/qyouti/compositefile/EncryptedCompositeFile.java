@@ -152,9 +152,11 @@ public class EncryptedCompositeFile
       return;
     
     String name;
-    for (ComponentEntry entry : componentmap.values())
+    for (int i=0; i<componentindex.slots(); i++)
     {
-      name = entry.tararchiveentry.getName();
+      if ( componentindex.isDeleted(i) )
+        continue;
+      name = componentindex.getName(i);
       if ( isPassphraseFileName(name) )
       {
         if (passphrasestatus != PASS_KNOWN)
@@ -349,9 +351,9 @@ public class EncryptedCompositeFile
    * Tidies up after entry has been read.
    */
   @Override
-  synchronized void closeInputStream()
+  synchronized void closeInputStream( RandomInputStream ris )
   {      
-    super.closeInputStream();
+    super.closeInputStream( ris );
   }
 
   /**
@@ -625,33 +627,38 @@ public class EncryptedCompositeFile
       {
         //System.err.println("no message integrity check");
       }
-      closeInputStream();
-      literalin.close();
-
-      if ( onepasssignature != null )
+      try
       {
-        Object o = pgpobjectfactory.nextObject();
-        System.out.println( "\n\nObject class following literal data object." + o.getClass().toString() );
-        if ( o instanceof PGPSignatureList )
+        literalin.close();
+
+        if ( onepasssignature != null )
         {
-          PGPSignatureList siglist = (PGPSignatureList)o;
-          if ( siglist.size() != 1 )
-            throw new IOException( "Problem attempting to verify the digital signature on this data file." );
-          PGPSignature signature = siglist.get(0);
-          System.out.println( "Verifying " + sigcount + " bytes of data" );
-          try
+          Object o = pgpobjectfactory.nextObject();
+          System.out.println( "\n\nObject class following literal data object." + o.getClass().toString() );
+          if ( o instanceof PGPSignatureList )
           {
-            boolean verified = onepasssignature.verify(signature);
-            System.out.println( "Signature verification " + verified );
-          }
-          catch (PGPException ex)
-          {
-            System.out.println( "Signature verification crashed"  );
-            Logger.getLogger(EncryptedCompositeFile.class.getName()).log(Level.SEVERE, null, ex);
+            PGPSignatureList siglist = (PGPSignatureList)o;
+            if ( siglist.size() != 1 )
+              throw new IOException( "Problem attempting to verify the digital signature on this data file." );
+            PGPSignature signature = siglist.get(0);
+            System.out.println( "Verifying " + sigcount + " bytes of data" );
+            try
+            {
+              boolean verified = onepasssignature.verify(signature);
+              System.out.println( "Signature verification " + verified );
+            }
+            catch (PGPException ex)
+            {
+              System.out.println( "Signature verification crashed"  );
+              Logger.getLogger(EncryptedCompositeFile.class.getName()).log(Level.SEVERE, null, ex);
+            }
           }
         }
       }
-
+      finally
+      {
+        tarin.close();
+      }
     }
 
     @Override
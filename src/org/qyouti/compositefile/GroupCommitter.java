@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps track of entries which have been committed to a composite file
+ * but are not yet known to be on the storage device. Entries committed
+ * between two forces share one future, so however many there are only
+ * one future is held, and one force of the file channel completes it. Scheduled entries are
+ * forced by a background thread once the oldest has waited for the time
+ * window or enough bytes have built up, whichever comes first. Entries
+ * that are not scheduled wait for the next call to flush().
+ */
+class GroupCommitter implements Runnable
+{
+    /**
+     * Work that must reach the file before each force, such as end of
+     * archive records that were deferred. It is called without the lock
+     * of the committer held.
+     */
+    interface BeforeForce
+    {
+        void beforeForce() throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final String name;
+    private final BeforeForce beforeforce;
+    private CompletableFuture<Void> pending = null;
+    private long pendingbytes = 0L;
+    private long oldest = 0L;
+    private boolean scheduled = false;
+    private long windowmillis;
+    private long windowbytes;
+    private Thread thread = null;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param channel The channel to force.
+     * @param name Used to name the background thread.
+     * @param windowmillis Longest time an entry should wait to be forced.
+     * @param windowbytes Amount of data that triggers a force straight away.
+     * @param beforeforce Called before each force.
+     */
+    GroupCommitter( FileChannel channel, String name, long windowmillis, long windowbytes,
+                    BeforeForce beforeforce )
+    {
+        this.channel = channel;
+        this.name = name;
+        this.beforeforce = beforeforce;
+        this.windowmillis = windowmillis;
+        this.windowbytes = windowbytes;
+    }
+
+    synchronized void setWindow( long windowmillis, long windowbytes )
+    {
+        this.windowmillis = windowmillis;
+        this.windowbytes = windowbytes;
+        notifyAll();
+    }
+
+    /**
+     * Add a committed entry.
+     *
+     * @param bytes How many bytes were written for the entry.
+     * @param schedule True if the background thread should force it.
+     * @return A future which completes when the entry is durable. It is
+     * shared with the other entries waiting for the same force.
+     */
+    synchronized CompletableFuture<Void> add( long bytes, boolean schedule )
+    {
+        if ( closed )
+        {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally( new IOException( "Composite file has been closed." ) );
+            return future;
+        }
+        if ( pending == null )
+        {
+            pending = new CompletableFuture<>();
+            oldest = System.currentTimeMillis();
+        }
+        pendingbytes += bytes;
+        if ( schedule )
+        {
+            scheduled = true;
+            if ( thread == null )
+            {
+                thread = new Thread( this, "GroupCommitter " + name );
+                thread.setDaemon( true );
+                thread.start();
+            }
+            notifyAll();
+        }
+        return pending;
+    }
+
+    /**
+     * Take everything that is pending so it can be forced.
+     *
+     * @return The future to complete after the force or null if nothing
+     * is pending.
+     */
+    private synchronized CompletableFuture<Void> take()
+    {
+        CompletableFuture<Void> future = pending;
+        pending = null;
+        pendingbytes = 0L;
+        scheduled = false;
+        return future;
+    }
+
+    /**
+     * Force the file and complete the given future.
+     *
+     * @param future Future taken from pending or null.
+     * @throws IOException
+     */
+    private void force( CompletableFuture<Void> future ) throws IOException
+    {
+        try
+        {
+            beforeforce.beforeForce();
+            channel.force( false );
+        }
+        catch ( IOException ex )
+        {
+            if ( future != null )
+                future.completeExceptionally( ex );
+            throw ex;
+        }
+        if ( future != null )
+            future.complete( null );
+    }
+
+    /**
+     * Force the file now and complete everything that is pending.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException
+    {
+        force( take() );
+    }
+
+    /**
+     * Stops the background thread after forcing everything pending.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException
+    {
+        Thread t;
+        synchronized ( this )
+        {
+            closed = true;
+            t = thread;
+            notifyAll();
+        }
+        if ( t != null )
+        {
+            try
+            {
+                t.join();
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * The background thread waits for scheduled entries then for the
+     * window to close before forcing the file.
+     */
+    @Override
+    public void run()
+    {
+        CompletableFuture<Void> future;
+        long wait;
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                try
+                {
+                    while ( !closed && !scheduled )
+                        wait();
+                    while ( !closed && pendingbytes < windowbytes
+                            && (wait = oldest + windowmillis - System.currentTimeMillis()) > 0 )
+                        wait( wait );
+                }
+                catch ( InterruptedException ex )
+                {
+                    return;
+                }
+                if ( closed )
+                    return;
+                future = take();
+            }
+            try
+            {
+                force( future );
+            }
+            catch ( IOException ex )
+            {
+                // the future carries the exception to whoever waits for it
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A saved copy of the index of a composite file so it can be opened
+ * without reading every header. The checkpoint is a body listing the
+ * entries followed by a 512 byte footer. It is stored either as the data
+ * of an ordinary tar entry at the end of the archive, so other tar tools
+ * just see an extra file, or in a sidecar file next to the archive.
+ *
+ * <p>The footer identifies the checkpoint and records what it covers so
+ * it can be checked against the archive before it is trusted.</p>
+ */
+class IndexCheckpoint
+{
+    /**
+     * Name of the tar entry which holds an in-archive checkpoint.
+     */
+    static final String NAME = ".compositefile/index";
+
+    static final int RECORD_SIZE = 512;
+    static final byte[] MAGIC = "CFINDEX1".getBytes( StandardCharsets.US_ASCII );
+
+    /** File offset of the header of the checkpoint entry or -1 in a sidecar. */
+    long headerpos = -1L;
+    /** File offset where the next new entry goes after the covered entries. */
+    long end;
+    /** File offset of the header of the last covered entry or -1. */
+    long tailpos = -1L;
+    /** CRC of the 512 byte header record at tailpos. */
+    long tailcrc = 0L;
+    /** Number of entries in the body. */
+    int count;
+    /** Length of the body in bytes. */
+    long length;
+    /** CRC of the body. */
+    long crc;
+
+    /**
+     * Works out how long the body will be for the given entries.
+     *
+     * @param entries
+     * @return Length in bytes.
+     */
+    static long bodyLength( ComponentIndex entries )
+    {
+        long length = 0L;
+        for ( int i=0; i<entries.slots(); i++ )
+            if ( !entries.isDeleted( i ) )
+                length += 2 + utfLength( entries.getName( i ) ) + 5 * 8;
+        return length;
+    }
+
+    /**
+     * The length of a string in the modified UTF-8 used by DataOutput.
+     */
+    private static int utfLength( String s )
+    {
+        int length = 0;
+        char c;
+        for ( int i=0; i<s.length(); i++ )
+        {
+            c = s.charAt(i);
+            if ( c >= 0x0001 && c <= 0x007f )
+                length++;
+            else if ( c > 0x07ff )
+                length += 3;
+            else
+                length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the body and fills in count, length and crc.
+     *
+     * @param out Where to write.
+     * @param entries The entries to list.
+     * @throws IOException
+     */
+    void writeBody( OutputStream out, ComponentIndex entries ) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        DataOutputStream dout = new DataOutputStream( new CheckedOutputStream( out, checksum ) );
+        count = 0;
+        for ( int i=0; i<entries.slots(); i++ )
+        {
+            if ( entries.isDeleted( i ) )
+                continue;
+            dout.writeUTF( entries.getName( i ) );
+            dout.writeLong( entries.getPos( i ) );
+            dout.writeLong( entries.getDataPos( i ) );
+            dout.writeLong( entries.getEnd( i ) );
+            dout.writeLong( entries.getSize( i ) );
+            dout.writeLong( entries.getModTime( i ) );
+            count++;
+        }
+        dout.flush();
+        length = dout.size();
+        crc = checksum.getValue();
+    }
+
+    /**
+     * Reads the body into an index and checks it against the footer.
+     *
+     * @param in Stream positioned at the start of the body.
+     * @param index Where to put the entries.
+     * @throws IOException If the body does not match the footer.
+     */
+    void readBody( InputStream in, ComponentIndex index ) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        DataInputStream din = new DataInputStream( new CheckedInputStream( in, checksum ) );
+        for ( int i=0; i<count; i++ )
+            index.put( din.readUTF(), din.readLong(), din.readLong(), din.readLong(), din.readLong(), din.readLong() );
+        if ( checksum.getValue() != crc )
+            throw new IOException( "Index checkpoint is corrupt." );
+    }
+
+    /**
+     * Make the footer record.
+     *
+     * @return 512 bytes.
+     */
+    byte[] toFooter()
+    {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap( record );
+        buffer.put( MAGIC );
+        buffer.putLong( headerpos );
+        buffer.putLong( end );
+        buffer.putLong( tailpos );
+        buffer.putLong( tailcrc );
+        buffer.putInt( count );
+        buffer.putLong( length );
+        buffer.putLong( crc );
+        return record;
+    }
+
+    /**
+     * Recognise and decode a footer record.
+     *
+     * @param record Buffer holding the record.
+     * @param off Where the record starts in the buffer.
+     * @return The decoded footer or null if this is not a footer.
+     */
+    static IndexCheckpoint fromFooter( byte[] record, int off )
+    {
+        for ( int i=0; i<MAGIC.length; i++ )
+            if ( record[off+i] != MAGIC[i] )
+                return null;
+        ByteBuffer buffer = ByteBuffer.wrap( record, off + MAGIC.length, RECORD_SIZE - MAGIC.length );
+        IndexCheckpoint checkpoint = new IndexCheckpoint();
+        checkpoint.headerpos = buffer.getLong();
+        checkpoint.end = buffer.getLong();
+        checkpoint.tailpos = buffer.getLong();
+        checkpoint.tailcrc = buffer.getLong();
+        checkpoint.count = buffer.getInt();
+        checkpoint.length = buffer.getLong();
+        checkpoint.crc = buffer.getLong();
+        if ( checkpoint.count < 0 || checkpoint.length < 0 )
+            return null;
+        return checkpoint;
+    }
+
+    /**
+     * Size of the data of a checkpoint tar entry. The body is padded to a
+     * whole number of records then the footer is the final record.
+     *
+     * @param bodylength
+     * @return
+     */
+    static long entrySize( long bodylength )
+    {
+        long records = (bodylength + RECORD_SIZE - 1) / RECORD_SIZE;
+        return (records + 1) * RECORD_SIZE;
+    }
+}
@@ -81,6 +81,7 @@ public class SeekableTarArchiveOutputStream extends ArchiveOutputStream {
      */
     public static final int BIGNUMBER_POSIX = 2;
     private static final int RECORD_SIZE = 512;
+    private static final int MIN_COMMENT_LENGTH = 16;
 
     private long currSize;
     private String currName;
@@ -88,6 +89,8 @@ public class SeekableTarArchiveOutputStream extends ArchiveOutputStream {
     private final byte[] recordBuf;
     private int longFileMode = LONGFILE_ERROR;
     private int bigNumberMode = BIGNUMBER_ERROR;
+    private int dataAlignment = 0;
+    private long offset = 0L;
     private int recordsWritten;
     private final int recordsPerBlock;
 
@@ -242,6 +245,24 @@ public class SeekableTarArchiveOutputStream extends ArchiveOutputStream {
         this.bigNumberMode = bigNumberMode;
     }
 
+    /**
+     * Make the data of every entry start at a multiple of the given
+     * alignment in the file. Entries that would not are given a PAX
+     * extended header holding a comment of the right length, which tar
+     * programs ignore. Default is 0, no alignment beyond the record size.
+     *
+     * @param dataAlignment a multiple of the record size or 0
+     * @param offset the file offset where this stream starts writing
+     */
+    public void setDataAlignment(final int dataAlignment, final long offset) {
+        if (dataAlignment < 0 || dataAlignment % RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("Data alignment must be a multiple of "
+                + RECORD_SIZE + " bytes.");
+        }
+        this.dataAlignment = dataAlignment;
+        this.offset = offset;
+    }
+
     /**
      * Whether to add a PAX extension header for non-ASCII file names.
      *
@@ -374,6 +395,11 @@ public class SeekableTarArchiveOutputStream extends ArchiveOutputStream {
             }
             paxHeaders.putAll(entry.getExtraPaxHeaders());
 
+            if (dataAlignment > RECORD_SIZE && !entry.isPaxHeader()
+                && !entry.isGNULongNameEntry() && !entry.isGNULongLinkEntry()) {
+                addAlignmentComment(paxHeaders);
+            }
+
             if (paxHeaders.size() > 0) {
                 writePaxHeaders(entry, entryName, paxHeaders);
             }
@@ -482,6 +508,45 @@ public class SeekableTarArchiveOutputStream extends ArchiveOutputStream {
         closeArchiveEntry();
     }
 
+    /**
+     * Adds a comment to the PAX headers of an entry, if it needs one, so
+     * that its data starts at a multiple of the data alignment. Nothing
+     * has been buffered since the last entry was closed so the count of
+     * bytes written is where the headers will go.
+     */
+    private void addAlignmentComment(final Map<String, String> paxHeaders)
+        throws UnsupportedEncodingException {
+        final long position = offset + getBytesWritten();
+        final int existing = paxHeaders.isEmpty() ? 0
+            : encodeExtendedPaxHeadersContents(paxHeaders).length;
+        final long datapos = existing == 0 ? position + RECORD_SIZE
+            : position + 2 * RECORD_SIZE + padded(existing);
+        if (datapos % dataAlignment == 0) {
+            return;
+        }
+        // the comment fills the PAX data to a whole number of records
+        long paxlength = padded(existing + MIN_COMMENT_LENGTH);
+        while ((position + 2 * RECORD_SIZE + paxlength) % dataAlignment != 0) {
+            paxlength += RECORD_SIZE;
+        }
+        while (true) {
+            // a record is "<length> comment=<value>\n"
+            final int length = (int) (paxlength - existing);
+            final char[] value = new char[length - Integer.toString(length).length() - 10];
+            Arrays.fill(value, ' ');
+            paxHeaders.put("comment", new String(value));
+            // a length which is a power of ten can be encoded one shorter
+            if (encodeExtendedPaxHeadersContents(paxHeaders).length == paxlength) {
+                return;
+            }
+            paxlength += dataAlignment;
+        }
+    }
+
+    private static long padded(final long size) {
+        return (size + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
     private byte[] encodeExtendedPaxHeadersContents(Map<String, String> headers)
         throws UnsupportedEncodingException {
         final StringWriter w = new StringWriter();
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+
+/**
+ * Corrects the size in the header of an entry which is already in the
+ * file without encoding the header again. The header record is read into
+ * a buffer that is kept for reuse, the size field and the checksum are
+ * changed and the record is written back in one positional write.
+ *
+ * <p>If the entry has a PAX extended header with a size record, as
+ * SeekableTarArchiveOutputStream writes for big sizes in BIGNUMBER_POSIX
+ * mode, the digits of that record are rewritten in place as well, and the
+ * size field of the header is left as zero if the size is too big for
+ * it. Otherwise a size too big for octal is written in the binary form
+ * that GNU tar and star read. Not thread safe - CompositeFile
+ * synchronizes.</p>
+ */
+class TarHeaderPatcher
+{
+    static final int RECORD_SIZE = 512;
+
+    private static final int SIZE_OFFSET = TarConstants.NAMELEN + TarConstants.MODELEN
+                                           + TarConstants.UIDLEN + TarConstants.GIDLEN;
+    private static final int MODTIME_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN;
+    private static final int CHKSUM_OFFSET = MODTIME_OFFSET + TarConstants.MODTIMELEN;
+    private static final int TYPE_OFFSET = CHKSUM_OFFSET + TarConstants.CHKSUMLEN;
+
+    private final CompositeFile compositefile;
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap( record );
+    // data of a PAX header, only made when one is found
+    private byte[] pax = null;
+
+    /**
+     *
+     * @param compositefile The file to patch.
+     */
+    TarHeaderPatcher( CompositeFile compositefile )
+    {
+        this.compositefile = compositefile;
+    }
+
+    /**
+     * Correct the size of an entry and optionally its modification time.
+     *
+     * @param pos File offset of the first header of the entry.
+     * @param datapos File offset of the data of the entry.
+     * @param size The size to record.
+     * @param mtime Modification time in milliseconds or -1 to leave it.
+     * @throws IOException If the header is corrupt or a PAX size record
+     * is too short for the size.
+     */
+    void patch( long pos, long datapos, long size, long mtime ) throws IOException
+    {
+        boolean paxsize = datapos != pos + RECORD_SIZE && patchPaxSize( pos, datapos, size );
+        long headerpos = datapos - RECORD_SIZE;
+        read( headerpos );
+        if ( !TarUtils.verifyCheckSum( record ) )
+            throw new IOException( "Error detected parsing the header at " + headerpos );
+        if ( paxsize && size > TarConstants.MAXSIZE )
+            TarUtils.formatLongOctalBytes( 0L, record, SIZE_OFFSET, TarConstants.SIZELEN );
+        else
+            TarUtils.formatLongOctalOrBinaryBytes( size, record, SIZE_OFFSET, TarConstants.SIZELEN );
+        if ( mtime >= 0 )
+            TarUtils.formatLongOctalOrBinaryBytes( mtime / 1000L, record, MODTIME_OFFSET, TarConstants.MODTIMELEN );
+        // the checksum is worked out with its own field as spaces
+        Arrays.fill( record, CHKSUM_OFFSET, CHKSUM_OFFSET + TarConstants.CHKSUMLEN, (byte)' ' );
+        TarUtils.formatCheckSumOctalBytes( TarUtils.computeCheckSum( record ), record,
+                                           CHKSUM_OFFSET, TarConstants.CHKSUMLEN );
+        buffer.clear();
+        compositefile.writeChannel( buffer, headerpos );
+    }
+
+    /**
+     * Rewrite the digits of the size record in a PAX header, keeping the
+     * record the same length by padding with zeros.
+     *
+     * @return True if there was a size record.
+     */
+    private boolean patchPaxSize( long pos, long datapos, long size ) throws IOException
+    {
+        read( pos );
+        if ( record[TYPE_OFFSET] != TarConstants.LF_PAX_EXTENDED_HEADER_LC )
+            return false;
+        long length = TarUtils.parseOctalOrBinary( record, SIZE_OFFSET, TarConstants.SIZELEN );
+        if ( length < 0 || pos + RECORD_SIZE + length > datapos - RECORD_SIZE )
+            throw new IOException( "Error detected parsing the header at " + pos );
+        if ( pax == null || pax.length < length )
+            pax = new byte[(int)length];
+        ByteBuffer data = ByteBuffer.wrap( pax, 0, (int)length );
+        compositefile.readChannelFully( data, pos + RECORD_SIZE );
+
+        // each record is "<length> <keyword>=<value>\n"
+        int off = 0, recordlength, key;
+        while ( off < length )
+        {
+            recordlength = 0;
+            for ( key = off; key < length && pax[key] >= '0' && pax[key] <= '9'; key++ )
+                recordlength = recordlength * 10 + (pax[key] - '0');
+            if ( recordlength <= 0 || off + recordlength > length || key >= length || pax[key] != ' ' )
+                throw new IOException( "Error detected parsing the header at " + pos );
+            key++;
+            if ( isSizeKey( key, off + recordlength ) )
+            {
+                int start = key + 5;
+                int end = off + recordlength - 1;
+                long value = size;
+                for ( int i = end - 1; i >= start; i-- )
+                {
+                    pax[i] = (byte)('0' + value % 10L);
+                    value /= 10L;
+                }
+                if ( value != 0L )
+                    throw new IOException( "Attempt to record a size too big for the extended header at " + pos );
+                data.limit( end ).position( start );
+                compositefile.writeChannel( data, pos + RECORD_SIZE + start );
+                return true;
+            }
+            off += recordlength;
+        }
+        return false;
+    }
+
+    private boolean isSizeKey( int off, int end )
+    {
+        return off + 5 < end && pax[off] == 's' && pax[off+1] == 'i' && pax[off+2] == 'z'
+               && pax[off+3] == 'e' && pax[off+4] == '=';
+    }
+
+    private void read( long pos ) throws IOException
+    {
+        buffer.clear();
+        compositefile.readChannelFully( buffer, pos );
+    }
+}
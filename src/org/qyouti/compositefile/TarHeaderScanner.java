@@ -0,0 +1,393 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.qyouti.compositefile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+
+/**
+ * Reads the headers of a tar archive to index it without the cost of
+ * TarArchiveInputStream. Headers are read from the file in large batches
+ * and only the fields the index needs are decoded - name, size, mtime,
+ * type and checksum. Data is never read, the scanner just works out where
+ * the next header is.
+ *
+ * <p>Headers that need more than that, PAX extended headers, GNU long
+ * names and the like, are handed to TarArchiveInputStream. The exception
+ * is a PAX header that holds nothing but comments, as written to align
+ * entry data, which is skipped over. After a PAX
+ * global header every following header is read that way because the
+ * global values apply to all of them.</p>
+ *
+ * <p>The scan stops at the first zero record, at the end of the file or at
+ * an entry whose data runs past the end of the file, as left by a writer
+ * that did not finish. In the last two cases hasEnd() is false.</p>
+ */
+class TarHeaderScanner
+{
+    static final int RECORD_SIZE = 512;
+    static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    private static final ZipEncoding ENCODING = ZipEncodingHelper.getZipEncoding( (String)null );
+    private static final byte[] MAGIC_POSIX = "ustar\0".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] MAGIC_XSTAR = "tar\0".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] COMMENT_KEY = "comment=".getBytes( StandardCharsets.US_ASCII );
+
+    private final CompositeFile compositefile;
+    private final long length;
+    private long position;
+    private boolean end = false;
+
+    private final byte[] batch;
+    private long batchstart = 0L;
+    private int batchlength = 0;
+
+    // used for everything after a PAX global header
+    private CompositeFile.RandomInputStream fullris = null;
+    private TarArchiveInputStream fulltis = null;
+
+    /**
+     *
+     * @param compositefile The file to read.
+     * @param start File offset of the first header.
+     * @param length Where the file ends.
+     */
+    TarHeaderScanner( CompositeFile compositefile, long start, long length )
+    {
+        this.compositefile = compositefile;
+        this.position = start;
+        this.length = length;
+        this.batch = new byte[ DEFAULT_BATCH_SIZE ];
+    }
+
+    /**
+     * After next() has returned null this is where the end of archive
+     * was found, or where it should be if hasEnd() is false.
+     *
+     * @return File offset.
+     */
+    long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * After next() has returned null, was the scan stopped by an end of
+     * archive record?
+     *
+     * @return False if the end of archive records are missing or the last
+     * entry is incomplete.
+     */
+    boolean hasEnd()
+    {
+        return end;
+    }
+
+    /**
+     * Index the next entry.
+     *
+     * @return The entry or null at the end of the archive.
+     * @throws IOException If a header is corrupt.
+     */
+    CompositeFile.ComponentEntry next() throws IOException
+    {
+        CompositeFile.ComponentEntry entry = nextEntry();
+        if ( entry != null && entry.datapos + entry.size > length )
+        {
+            // a torn write - the entry is not really there
+            position = entry.pos;
+            return null;
+        }
+        return entry;
+    }
+
+    private CompositeFile.ComponentEntry nextEntry() throws IOException
+    {
+        if ( fulltis != null )
+            return nextFull();
+
+        if ( position + RECORD_SIZE > length )
+            return null;
+        int off = load( position );
+        if ( isZeroRecord( batch, off ) )
+        {
+            end = true;
+            return null;
+        }
+        if ( !verifyCheckSum( off ) )
+            throw new IOException( "Error detected parsing the header at " + position );
+
+        byte type = typeOf( off );
+        if ( isSimple( type ) )
+            return nextSimple( off, type );
+        switch ( type )
+        {
+            case TarConstants.LF_PAX_EXTENDED_HEADER_LC:
+                return nextPax( off );
+            case TarConstants.LF_PAX_GLOBAL_EXTENDED_HEADER:
+                fullris = compositefile.new RandomInputStream( position, length );
+                fulltis = new TarArchiveInputStream( fullris );
+                return nextFull();
+            default:
+                return nextParsed();
+        }
+    }
+
+    /**
+     * Decode an ordinary header from the batch.
+     */
+    private CompositeFile.ComponentEntry nextSimple( int off, byte type ) throws IOException
+    {
+        String name = parseName( off, TarConstants.NAMELEN );
+        boolean posix = matches( off + 257, MAGIC_POSIX );
+        if ( posix || !matches( off + 257, "ustar ".getBytes( StandardCharsets.US_ASCII ) ) )
+        {
+            // not old GNU so there may be a prefix, which is shorter in xstar headers
+            if ( type == TarConstants.LF_DIR && !name.endsWith( "/" ) )
+                name = name + "/";
+            int prefixlength = posix && matches( off + 508, MAGIC_XSTAR ) ? 131 : TarConstants.PREFIXLEN;
+            String prefix = parseName( off + 345, prefixlength );
+            if ( prefix.length() > 0 )
+                name = prefix + "/" + name;
+        }
+
+        int sizeoff = off + TarConstants.NAMELEN + TarConstants.MODELEN + TarConstants.UIDLEN + TarConstants.GIDLEN;
+        long size = TarUtils.parseOctalOrBinary( batch, sizeoff, TarConstants.SIZELEN );
+        long mtime = TarUtils.parseOctalOrBinary( batch, sizeoff + TarConstants.SIZELEN, TarConstants.MODTIMELEN );
+        if ( type == TarConstants.LF_DIR || type == TarConstants.LF_LINK || type == TarConstants.LF_SYMLINK
+             || type == TarConstants.LF_CHR || type == TarConstants.LF_BLK || type == TarConstants.LF_FIFO )
+            size = 0L;
+
+        CompositeFile.ComponentEntry entry = new CompositeFile.ComponentEntry( name, position );
+        entry.datapos = position + RECORD_SIZE;
+        entry.size = size;
+        entry.mtime = mtime * 1000L;
+        entry.end = entry.datapos + padded( size );
+        position = entry.end;
+        return entry;
+    }
+
+    /**
+     * Skip a PAX header if it only holds comments and is followed by an
+     * ordinary header, otherwise parse it fully.
+     */
+    private CompositeFile.ComponentEntry nextPax( int off ) throws IOException
+    {
+        long start = position;
+        long paxsize = TarUtils.parseOctalOrBinary( batch, off + TarConstants.NAMELEN + TarConstants.MODELEN
+                                                    + TarConstants.UIDLEN + TarConstants.GIDLEN,
+                                                    TarConstants.SIZELEN );
+        long headerpos = start + RECORD_SIZE + padded( paxsize );
+        if ( paxsize <= 0 || headerpos + RECORD_SIZE > length || !isCommentOnly( start + RECORD_SIZE, paxsize ) )
+            return nextParsed();
+        off = load( headerpos );
+        if ( !verifyCheckSum( off ) )
+            throw new IOException( "Error detected parsing the header at " + headerpos );
+        byte type = typeOf( off );
+        if ( !isSimple( type ) )
+            return nextParsed();
+        position = headerpos;
+        CompositeFile.ComponentEntry entry = nextSimple( off, type );
+        entry.pos = start;
+        return entry;
+    }
+
+    /**
+     * Check the keyword of each "length keyword=value" record of PAX data
+     * without reading the values.
+     */
+    private boolean isCommentOnly( long pos, long paxsize ) throws IOException
+    {
+        long end = pos + paxsize;
+        int off, i;
+        long recordlength;
+        while ( pos < end )
+        {
+            off = load( pos );
+            recordlength = 0L;
+            for ( i = off; i < off + 20 && batch[i] >= '0' && batch[i] <= '9'; i++ )
+                recordlength = recordlength * 10L + (batch[i] - '0');
+            if ( recordlength <= 0L || pos + recordlength > end || batch[i] != ' '
+                 || !matches( i + 1, COMMENT_KEY ) )
+                return false;
+            pos += recordlength;
+        }
+        return true;
+    }
+
+    /**
+     * Let TarArchiveInputStream deal with one entry which has extra headers.
+     */
+    private CompositeFile.ComponentEntry nextParsed() throws IOException
+    {
+        CompositeFile.RandomInputStream ris = compositefile.new RandomInputStream( position, length );
+        TarArchiveInputStream tis = new TarArchiveInputStream( ris );
+        TarArchiveEntry tarentry = tis.getNextEntry();
+        if ( tarentry == null )
+        {
+            end = position + RECORD_SIZE <= length && isZeroRecord( batch, load( position ) );
+            return null;
+        }
+        CompositeFile.ComponentEntry entry = new CompositeFile.ComponentEntry( position, tarentry );
+        entry.datapos = ris.getPosition();
+        entry.end = entry.datapos + padded( tarentry.getSize() );
+        position = entry.end;
+        tis.close();
+        return entry;
+    }
+
+    /**
+     * Let TarArchiveInputStream read all the remaining entries.
+     */
+    private CompositeFile.ComponentEntry nextFull() throws IOException
+    {
+        TarArchiveEntry tarentry = fulltis.getNextEntry();
+        if ( tarentry == null )
+        {
+            end = position + RECORD_SIZE <= length && isZeroRecord( batch, load( position ) );
+            fulltis.close();
+            return null;
+        }
+        CompositeFile.ComponentEntry entry = new CompositeFile.ComponentEntry( position, tarentry );
+        entry.datapos = fullris.getPosition();
+        entry.end = entry.datapos + padded( tarentry.getSize() );
+        position = entry.end;
+        return entry;
+    }
+
+    /**
+     * Make sure the record at the given position is in the batch.
+     *
+     * @param pos File offset of the record.
+     * @return Offset of the record in the batch.
+     * @throws IOException
+     */
+    private int load( long pos ) throws IOException
+    {
+        if ( pos < batchstart || pos + RECORD_SIZE > batchstart + batchlength )
+        {
+            int len = (int)Math.min( batch.length, length - pos );
+            ByteBuffer dst = ByteBuffer.wrap( batch, 0, len );
+            int n;
+            while ( dst.hasRemaining() && (n = compositefile.readChannel( dst, pos + dst.position() )) > 0 )
+                ;
+            batchstart = pos;
+            batchlength = dst.position();
+            if ( batchlength < RECORD_SIZE )
+                throw new IOException( "Unexpected end of composite file." );
+        }
+        return (int)(pos - batchstart);
+    }
+
+    private String parseName( int off, int len ) throws IOException
+    {
+        int end = off;
+        boolean ascii = true;
+        while ( end < off + len && batch[end] != 0 )
+        {
+            if ( batch[end] < 0 )
+                ascii = false;
+            end++;
+        }
+        if ( ascii )
+            return new String( batch, off, end - off, StandardCharsets.US_ASCII );
+        return TarUtils.parseName( batch, off, len, ENCODING );
+    }
+
+    /**
+     * The same test as TarUtils.verifyCheckSum() but on a record in the batch.
+     */
+    private boolean verifyCheckSum( int off ) throws IOException
+    {
+        int chksumoff = off + TarConstants.NAMELEN + TarConstants.MODELEN + TarConstants.UIDLEN
+                        + TarConstants.GIDLEN + TarConstants.SIZELEN + TarConstants.MODTIMELEN;
+        long stored;
+        try
+        {
+            stored = TarUtils.parseOctal( batch, chksumoff, TarConstants.CHKSUMLEN );
+        }
+        catch ( IllegalArgumentException ex )
+        {
+            return false;
+        }
+        long unsigned = 0L, signed = 0L;
+        byte b;
+        for ( int i=off; i<off+RECORD_SIZE; i++ )
+        {
+            b = batch[i];
+            if ( i >= chksumoff && i < chksumoff + TarConstants.CHKSUMLEN )
+                b = ' ';
+            unsigned += 0xff & b;
+            signed += b;
+        }
+        return stored == unsigned || stored == signed;
+    }
+
+    private byte typeOf( int off )
+    {
+        return batch[off + TarConstants.NAMELEN + TarConstants.MODELEN + TarConstants.UIDLEN
+                     + TarConstants.GIDLEN + TarConstants.SIZELEN + TarConstants.MODTIMELEN
+                     + TarConstants.CHKSUMLEN];
+    }
+
+    private static boolean isSimple( byte type )
+    {
+        switch ( type )
+        {
+            case TarConstants.LF_OLDNORM:
+            case TarConstants.LF_NORMAL:
+            case TarConstants.LF_LINK:
+            case TarConstants.LF_SYMLINK:
+            case TarConstants.LF_CHR:
+            case TarConstants.LF_BLK:
+            case TarConstants.LF_DIR:
+            case TarConstants.LF_FIFO:
+            case TarConstants.LF_CONTIG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean matches( int off, byte[] magic )
+    {
+        for ( int i=0; i<magic.length; i++ )
+            if ( batch[off+i] != magic[i] )
+                return false;
+        return true;
+    }
+
+    private static boolean isZeroRecord( byte[] b, int off )
+    {
+        for ( int i=off; i<off+RECORD_SIZE; i++ )
+            if ( b[i] != 0 )
+                return false;
+        return true;
+    }
+
+    static long padded( long size )
+    {
+        return (size + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+}
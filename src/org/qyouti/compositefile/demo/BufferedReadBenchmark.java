@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile.demo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.qyouti.compositefile.CompositeFile;
+
+/**
+ * Compares the number of file read calls and the throughput of entry
+ * extraction with different read buffer sizes. The first rows, marked
+ * "seek", read the way input streams used to: seek a RandomAccessFile to
+ * the entry header and hand it, unbuffered, to a TarArchiveInputStream.
+ * The other rows go through CompositeFile.getInputStream with the given
+ * read buffer size; zero means no buffer. Both single byte reads, as made
+ * by the OpenPGP packet parsers, and 8KiB block reads are measured on
+ * large and on small entries. The last rows read through memory mappings
+ * instead of a buffer.
+ * <p>
+ * "read calls" counts the read requests that reach the file, each of which
+ * is one read system call: RandomAccessFile.read calls for the seek rows and
+ * CompositeFile.getChannelReadCount() for the rest. Mapped reads make no
+ * read calls at all; the pages are faulted in instead.
+ */
+public class BufferedReadBenchmark
+{
+  static final int[] BUFFER_SIZES = { 0, 64 * 1024, 1024 * 1024 };
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args)
+  {
+    int largecount = 4, largesize = 4 * 1024 * 1024;
+    int smallcount = 2000, smallsize = 2000;
+
+    try
+    {
+      File file = new File("demo/bufferbenchmark.tar");
+      file.getParentFile().mkdirs();
+      if ( file.exists() )
+        file.delete();
+
+      CompositeFile compfile = CompositeFile.getCompositeFile(file);
+      Random random = new Random(0);
+      byte[] buffer = new byte[largesize];
+      random.nextBytes(buffer);
+      for ( int i=0; i<largecount; i++ )
+      {
+        OutputStream out = compfile.getOutputStream("large" + i, false);
+        out.write(buffer);
+        out.close();
+      }
+      for ( int i=0; i<smallcount; i++ )
+      {
+        OutputStream out = compfile.getOutputStream("small" + i, false);
+        out.write(buffer, i, smallsize);
+        out.close();
+      }
+
+      Map<String,Long> headers = findHeaders( file );
+      System.out.println( "buffer    entries  reads      read calls     MiB/s" );
+      seek( file, headers, "large", largecount, true );
+      seek( file, headers, "large", largecount, false );
+      seek( file, headers, "small", smallcount, true );
+      seek( file, headers, "small", smallcount, false );
+      for ( int buffersize : BUFFER_SIZES )
+      {
+        compfile.setReadBufferSize(buffersize);
+        run( compfile, buffersize, "large", largecount, true );
+        run( compfile, buffersize, "large", largecount, false );
+        run( compfile, buffersize, "small", smallcount, true );
+        run( compfile, buffersize, "small", smallcount, false );
+      }
+      compfile.setMemoryMapped(true);
+      run( compfile, -1, "large", largecount, true );
+      run( compfile, -1, "large", largecount, false );
+      run( compfile, -1, "small", smallcount, true );
+      run( compfile, -1, "small", smallcount, false );
+      compfile.close();
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(BufferedReadBenchmark.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
+  /**
+   * Finds where the header of each entry starts by scanning the archive.
+   * The entry names are short so each header is a single record.
+   */
+  static Map<String,Long> findHeaders( File file ) throws IOException
+  {
+    HashMap<String,Long> headers = new HashMap<>();
+    try ( CountingInputStream counter = new CountingInputStream( new FileInputStream( file ) );
+          TarArchiveInputStream tarin = new TarArchiveInputStream( counter ) )
+    {
+      TarArchiveEntry entry;
+      while ( (entry = tarin.getNextEntry()) != null )
+        headers.put( entry.getName(), counter.position - 512L );
+    }
+    return headers;
+  }
+
+  static void seek( File file, Map<String,Long> headers, String prefix, int count, boolean bytewise )
+          throws IOException
+  {
+    byte[] b = new byte[8192];
+    long total = 0L;
+    int n;
+    long calls = 0L;
+    long start = System.nanoTime();
+    try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) )
+    {
+      for ( int i=0; i<count; i++ )
+      {
+        raf.seek( headers.get( prefix + i ) );
+        RandomInputStream rin = new RandomInputStream( raf );
+        TarArchiveInputStream in = new TarArchiveInputStream( rin );
+        in.getNextEntry();
+        if ( bytewise )
+        {
+          while ( in.read() >= 0 )
+            total++;
+        }
+        else
+        {
+          while ( (n = in.read(b)) > 0 )
+            total += n;
+        }
+        calls += rin.calls;
+      }
+    }
+    double elapsed = (System.nanoTime() - start) / 1.0e9;
+    System.out.println( String.format( "%7s   %-7s  %-9s  %10d  %10.1f",
+            "seek", prefix, bytewise ? "byte" : "8KiB", calls,
+            total / elapsed / (1024.0 * 1024.0) ) );
+  }
+
+  static void run( CompositeFile compfile, int buffersize, String prefix, int count, boolean bytewise )
+          throws IOException
+  {
+    byte[] b = new byte[8192];
+    long total = 0L;
+    int n;
+    long calls = compfile.getChannelReadCount();
+    long start = System.nanoTime();
+    for ( int i=0; i<count; i++ )
+    {
+      InputStream in = compfile.getInputStream(prefix + i);
+      if ( bytewise )
+      {
+        while ( in.read() >= 0 )
+          total++;
+      }
+      else
+      {
+        while ( (n = in.read(b)) > 0 )
+          total += n;
+      }
+      in.close();
+    }
+    double elapsed = (System.nanoTime() - start) / 1.0e9;
+    calls = compfile.getChannelReadCount() - calls;
+    System.out.println( String.format( "%7s   %-7s  %-9s  %10d  %10.1f",
+            buffersize < 0 ? "mapped" : Integer.toString(buffersize), prefix, bytewise ? "byte" : "8KiB", calls,
+            total / elapsed / (1024.0 * 1024.0) ) );
+  }
+
+  /**
+   * The unbuffered stream that entries used to be read through. Every
+   * read goes straight to the RandomAccessFile.
+   */
+  static class RandomInputStream extends InputStream
+  {
+    final RandomAccessFile raf;
+    long calls = 0L;
+
+    RandomInputStream( RandomAccessFile raf )
+    {
+      this.raf = raf;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      calls++;
+      return raf.read();
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+      calls++;
+      return raf.read( b, off, len );
+    }
+  }
+
+  /**
+   * Keeps track of how far into the archive a scan has got.
+   */
+  static class CountingInputStream extends FilterInputStream
+  {
+    long position = 0L;
+
+    CountingInputStream( InputStream in )
+    {
+      super( in );
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int b = super.read();
+      if ( b >= 0 )
+        position++;
+      return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+      int n = super.read( b, off, len );
+      if ( n > 0 )
+        position += n;
+      return n;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException
+    {
+      long skipped = super.skip( n );
+      position += skipped;
+      return skipped;
+    }
+  }
+}
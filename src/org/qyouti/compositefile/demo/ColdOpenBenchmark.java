@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile.demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.qyouti.compositefile.CompositeFile;
+
+/**
+ * Measures how long it takes to open a composite file which has no index
+ * checkpoint, so every header must be read, with 10^3 up to 10^6 small
+ * entries. For comparison the same archive is also indexed by reading it
+ * through TarArchiveInputStream, which is how opening used to work.
+ *
+ * The page cache is not dropped between runs so the times are for an
+ * archive that is already in memory - the scanner's advantage is the CPU
+ * it saves and the fewer, larger reads it makes. The optional argument is
+ * the largest power of ten to try, 6 by default.
+ */
+public class ColdOpenBenchmark
+{
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args)
+  {
+    int maxpower = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+    byte[] data = new byte[100];
+
+    try
+    {
+      System.out.println( "entries    tar parse ms    open ms    speed up" );
+      for ( int power = 3; power <= maxpower; power++ )
+      {
+        int count = (int)Math.pow(10, power);
+        File file = new File("demo/coldopen" + count + ".tar");
+        file.getParentFile().mkdirs();
+        if ( file.exists() )
+          file.delete();
+
+        TarArchiveOutputStream tos = new TarArchiveOutputStream(
+                new BufferedOutputStream( new FileOutputStream(file), 1024 * 1024 ) );
+        for ( int i=0; i<count; i++ )
+        {
+          TarArchiveEntry entry = new TarArchiveEntry("entries/entry" + i + ".dat");
+          entry.setSize(data.length);
+          tos.putArchiveEntry(entry);
+          tos.write(data);
+          tos.closeArchiveEntry();
+        }
+        tos.close();
+
+        // first pass of each warms up the JVM and the page cache
+        double parse = 0.0, open = 0.0;
+        for ( int pass = 0; pass < 2; pass++ )
+        {
+          parse = parse(file, count);
+          open = open(file, count);
+        }
+        System.out.println( String.format( "%7d   %12.1f  %9.1f   x%.2f", count, parse, open, parse / open ) );
+        file.delete();
+      }
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(ColdOpenBenchmark.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
+  static double parse( File file, int count ) throws IOException
+  {
+    long start = System.nanoTime();
+    TarArchiveInputStream tis = new TarArchiveInputStream(
+            new BufferedInputStream( new FileInputStream(file), 64 * 1024 ) );
+    int n = 0;
+    while ( tis.getNextEntry() != null )
+      n++;
+    tis.close();
+    if ( n != count )
+      throw new IOException( "Found " + n + " entries, expected " + count );
+    return (System.nanoTime() - start) / 1.0e6;
+  }
+
+  static double open( File file, int count ) throws IOException
+  {
+    long start = System.nanoTime();
+    CompositeFile compfile = CompositeFile.getCompositeFile(file);
+    double elapsed = (System.nanoTime() - start) / 1.0e6;
+    if ( !compfile.exists("entries/entry" + (count - 1) + ".dat") )
+      throw new IOException( "Last entry is missing." );
+    compfile.close();
+    return elapsed;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.qyouti.compositefile.CompositeFile;
+
+/**
+ * Measures how read throughput of a single composite file scales with the
+ * number of threads reading different entries at the same time.
+ *
+ * Arguments (all optional): number of entries, entry size in bytes and
+ * seconds to run for each thread count.
+ */
+public class ConcurrentReadBenchmark
+{
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args)
+  {
+    final int entries   = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final int entrysize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+    final int seconds   = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    try
+    {
+      File file = new File("demo/benchmark.tar");
+      file.getParentFile().mkdirs();
+      if ( file.exists() )
+        file.delete();
+
+      final CompositeFile compfile = CompositeFile.getCompositeFile(file);
+      byte[] buffer = new byte[entrysize];
+      new Random(0).nextBytes(buffer);
+      for ( int i=0; i<entries; i++ )
+      {
+        OutputStream out = compfile.getOutputStream("entry" + i, false);
+        out.write(buffer);
+        out.close();
+      }
+
+      double single = 0.0;
+      int maxthreads = Runtime.getRuntime().availableProcessors() * 2;
+      for ( int threads = 1; threads <= maxthreads; threads *= 2 )
+      {
+        final AtomicLong total = new AtomicLong();
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[threads];
+        for ( int t=0; t<threads; t++ )
+        {
+          final int seed = t;
+          workers[t] = new Thread( new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              Random random = new Random(seed);
+              byte[] b = new byte[8192];
+              long count = 0L;
+              int n;
+              try
+              {
+                while ( System.currentTimeMillis() < end )
+                {
+                  InputStream in = compfile.getInputStream("entry" + random.nextInt(entries));
+                  while ( (n = in.read(b)) > 0 )
+                    count += n;
+                  in.close();
+                }
+              }
+              catch (IOException ex)
+              {
+                Logger.getLogger(ConcurrentReadBenchmark.class.getName()).log(Level.SEVERE, null, ex);
+              }
+              total.addAndGet(count);
+            }
+          });
+        }
+        long start = System.nanoTime();
+        for ( Thread worker : workers )
+          worker.start();
+        for ( Thread worker : workers )
+          worker.join();
+        double elapsed = (System.nanoTime() - start) / 1.0e9;
+        double mbps = total.get() / elapsed / (1024.0 * 1024.0);
+        if ( threads == 1 )
+          single = mbps;
+        System.out.println( String.format( "%3d threads  %10.1f MiB/s  x%.2f", threads, mbps, mbps / single ) );
+      }
+      compfile.close();
+    }
+    catch (IOException | InterruptedException ex)
+    {
+      Logger.getLogger(ConcurrentReadBenchmark.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
+}
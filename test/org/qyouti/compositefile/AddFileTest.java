@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries added from files and channels hold the right content, and one
+ * whose channel runs out leaves no trace.
+ */
+public class AddFileTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "addfile.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void addFilesAndChannels() throws Exception
+  {
+    byte[] big = new byte[3 * 1024 * 1024 + 77];
+    new Random( 0 ).nextBytes( big );
+    File source = new File( dir, "source" );
+    Files.write( source.toPath(), big );
+    byte[] small = TestFiles.content( "channel", 1 );
+
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.addFile( "file", source.toPath(), false ).get();
+    // only size bytes are taken from the channel
+    byte[] longer = Arrays.copyOf( small, small.length + 1000 );
+    compfile.addChannel( "channel", Channels.newChannel( new ByteArrayInputStream( longer ) ), small.length, false );
+    File empty = new File( dir, "emptysource" );
+    empty.createNewFile();
+    compfile.addFile( "empty", empty.toPath(), false );
+    assertArrayEquals( big, compfile.readAllBytes( "file" ) );
+    assertArrayEquals( small, compfile.readAllBytes( "channel" ) );
+    compfile.close();
+
+    assertEquals( Arrays.asList( "file", "channel", "empty" ), TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertArrayEquals( big, compfile.readAllBytes( "file" ) );
+    assertArrayEquals( small, compfile.readAllBytes( "channel" ) );
+    assertEquals( 0L, compfile.getSize( "empty" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void shortChannelLeavesNothingBehind() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "before", TestFiles.content( "before", 1 ), false );
+    long length = file.length();
+    try
+    {
+      compfile.addChannel( "short", Channels.newChannel( new ByteArrayInputStream( new byte[10] ) ), 100000L, false );
+      fail( "A channel that runs out should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    assertFalse( compfile.exists( "short" ) );
+    assertEquals( length, file.length() );
+    compfile.put( "after", TestFiles.content( "after", 1 ), false );
+    compfile.close();
+
+    assertEquals( Arrays.asList( "before", "after" ), TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertFalse( compfile.exists( "short" ) );
+    TestFiles.check( "after", compfile.readAllBytes( "after" ) );
+    compfile.close();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * With a data alignment set, the data of every entry starts at a multiple
+ * of it however the entry was written, also after reopening and
+ * compaction, and the archive still reads as an ordinary tar archive.
+ */
+public class AlignmentTest
+{
+  static final int ALIGNMENT = 4096;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "alignment.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void everyWritePathAligns() throws Exception
+  {
+    List<String> names = new ArrayList<>();
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDataAlignment( ALIGNMENT );
+    for ( int i=0; i<5; i++ )
+      compfile.put( add( names, "put" + i ), TestFiles.content( "put" + i, 1 ), false );
+
+    OutputStream out = compfile.getOutputStream( add( names, "stream" ), false );
+    out.write( TestFiles.content( "stream", 1 ) );
+    out.close();
+    compfile.setStagingSize( 0 );
+    out = compfile.getOutputStream( add( names, "unstaged" ), false );
+    out.write( TestFiles.content( "unstaged", 1 ) );
+    out.close();
+    out = compfile.getStagedOutputStream( add( names, "staged" ), false );
+    out.write( TestFiles.content( "staged", 1 ) );
+    out.close();
+    byte[] data = TestFiles.content( "channel", 1 );
+    compfile.addChannel( add( names, "channel" ), Channels.newChannel( new ByteArrayInputStream( data ) ), data.length, false );
+    CompositeFile.Batch batch = compfile.beginBatch();
+    batch.put( add( names, "batch0" ), TestFiles.content( "batch0", 1 ), false );
+    batch.put( add( names, "batch1" ), TestFiles.content( "batch1", 1 ), false );
+    batch.commit();
+    out = compfile.getGrowableOutputStream( add( names, "growable" ), 10000, false );
+    out.write( TestFiles.content( "growable", 1 ) );
+    out.close();
+    compfile.put( add( names, "last" ), TestFiles.content( "last", 1 ), false );
+    checkAligned( compfile, names );
+    compfile.close();
+
+    // another tar reader sees the entries and nothing else but fillers
+    try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+    {
+      TarArchiveEntry entry;
+      int n = 0;
+      while ( (entry = tis.getNextEntry()) != null )
+      {
+        if ( entry.getName().startsWith( CompositeFile.RESERVED_PREFIX ) )
+          continue;
+        assertEquals( names.get( n++ ), entry.getName() );
+        TestFiles.check( entry.getName(), TestFiles.readAll( tis ) );
+      }
+      assertEquals( names.size(), n );
+    }
+
+    compfile = CompositeFile.getCompositeFile( file );
+    checkAligned( compfile, names );
+    for ( String name : names )
+      TestFiles.check( name, compfile.readAllBytes( name ) );
+    compfile.close();
+  }
+
+  @Test
+  public void compactionKeepsAlignment() throws Exception
+  {
+    List<String> names = new ArrayList<>();
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDataAlignment( ALIGNMENT );
+    for ( int i=0; i<20; i++ )
+      compfile.put( add( names, "entry" + i ), TestFiles.content( "entry" + i, 1 ), false );
+    for ( int i=0; i<20; i+=3 )
+    {
+      compfile.delete( "entry" + i );
+      names.remove( "entry" + i );
+    }
+    compfile.compact( 0L );
+    checkAligned( compfile, names );
+    for ( String name : names )
+      TestFiles.check( name, compfile.readAllBytes( name ) );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    checkAligned( compfile, names );
+    compfile.close();
+  }
+
+  static String add( List<String> names, String name )
+  {
+    names.add( name );
+    return name;
+  }
+
+  static void checkAligned( CompositeFile compfile, List<String> names )
+  {
+    for ( String name : names )
+    {
+      long datapos = compfile.componentindex.getDataPos( compfile.componentindex.find( name ) );
+      assertEquals( name + " at " + datapos, 0L, datapos % ALIGNMENT );
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries of a batch are published together when it is committed and
+ * never when it is aborted, in this session or after the archive is
+ * opened again.
+ */
+public class BatchTest
+{
+  File dir;
+  File file;
+  File crashed;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "batch.tar" );
+    crashed = new File( dir, "crashed.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void committedEntriesAppearTogether() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "before", TestFiles.content( "before", 0 ), false );
+    CompositeFile.Batch batch = compfile.beginBatch();
+    write( batch, "a" );
+    assertFalse( "nothing is seen before commit", compfile.exists( "a0" ) );
+    try
+    {
+      compfile.put( "outside", new byte[10], false );
+      fail( "Nothing else can be written while a batch is open" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    // a crash before commit loses the whole batch
+    Files.copy( file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    batch.commit().get();
+    verify( compfile, "a" );
+    compfile.put( "after", TestFiles.content( "after", 0 ), false );
+    compfile.close();
+
+    List<String> expected = new ArrayList<>();
+    expected.add( "before" );
+    for ( int i=0; i<3; i++ )
+      expected.add( "a" + i );
+    expected.add( "after" );
+    assertEquals( expected, TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    verify( compfile, "a" );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( crashed );
+    TestFiles.check( "before", compfile.readAllBytes( "before" ) );
+    for ( int i=0; i<3; i++ )
+      assertFalse( compfile.exists( "a" + i ) );
+    compfile.close();
+  }
+
+  @Test
+  public void abortedEntriesNeverAppear() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "before", TestFiles.content( "before", 0 ), false );
+    long length = file.length();
+    CompositeFile.Batch batch = compfile.beginBatch();
+    write( batch, "a" );
+    batch.abort();
+    for ( int i=0; i<3; i++ )
+      assertFalse( compfile.exists( "a" + i ) );
+    assertEquals( "the batch data should be dropped", length, file.length() );
+
+    // the names are free again and the archive carries on
+    batch = compfile.beginBatch();
+    write( batch, "a" );
+    batch.commit();
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    TestFiles.check( "before", compfile.readAllBytes( "before" ) );
+    verify( compfile, "a" );
+    compfile.close();
+  }
+
+  void write( CompositeFile.Batch batch, String prefix ) throws IOException
+  {
+    byte[] data = TestFiles.content( prefix + 0, 0 );
+    OutputStream out = batch.getOutputStream( prefix + 0, false );
+    out.write( data );
+    out.close();
+    data = TestFiles.content( prefix + 1, 0 );
+    out = batch.getOutputStream( prefix + 1, data.length, false );
+    out.write( data );
+    out.close();
+    batch.put( prefix + 2, TestFiles.content( prefix + 2, 0 ), false );
+  }
+
+  void verify( CompositeFile compfile, String prefix ) throws IOException
+  {
+    for ( int i=0; i<3; i++ )
+      assertArrayEquals( prefix + i, TestFiles.content( prefix + i, 0 ), compfile.readAllBytes( prefix + i ) );
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Input streams read through a buffer of the configured size, stop at the
+ * end of their entry and skip and report what is left correctly.
+ */
+public class BufferedReadTest
+{
+  static final int[] BUFFER_SIZES = { 0, 512, 4096, 64 * 1024 };
+
+  File dir;
+  File file;
+  byte[] a;
+  byte[] b;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "bufferedread.tar" );
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    a = TestFiles.content( "a", 1 );
+    b = TestFiles.content( "b", 1 );
+    compfile.put( "a", a, false );
+    compfile.put( "b", b, false );
+    compfile.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void readsStopAtTheEndOfTheEntry() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int size : BUFFER_SIZES )
+    {
+      compfile.setReadBufferSize( size );
+      InputStream in = compfile.getInputStream( "a" );
+      for ( int i=0; i<a.length; i++ )
+        assertEquals( "byte " + i + " with buffer " + size, a[i] & 0xff, in.read() );
+      assertEquals( -1, in.read() );
+      assertEquals( -1, in.read( new byte[10] ) );
+      in.close();
+
+      in = compfile.getInputStream( "a" );
+      byte[] all = new byte[a.length + 1000];
+      int n, total = 0;
+      while ( (n = in.read( all, total, all.length - total )) > 0 )
+        total += n;
+      assertEquals( a.length, total );
+      in.close();
+    }
+    compfile.close();
+  }
+
+  @Test
+  public void skipAndAvailable() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int size : BUFFER_SIZES )
+    {
+      compfile.setReadBufferSize( size );
+      InputStream in = compfile.getInputStream( "b" );
+      assertEquals( b.length, in.available() );
+      assertEquals( b[0] & 0xff, in.read() );
+      assertEquals( 100L, in.skip( 100L ) );
+      assertEquals( b[101] & 0xff, in.read() );
+      assertEquals( b.length - 102, in.available() );
+      // no going back, then far past what the buffer holds
+      assertEquals( 0L, in.skip( -5L ) );
+      assertEquals( 5000L, in.skip( 5000L ) );
+      assertEquals( b[5102] & 0xff, in.read() );
+      assertEquals( b.length - 5103, in.skip( Long.MAX_VALUE ) );
+      assertEquals( 0, in.available() );
+      assertEquals( 0L, in.skip( 1L ) );
+      assertEquals( -1, in.read() );
+      in.close();
+    }
+    compfile.close();
+  }
+
+  @Test
+  public void bufferCutsReadCalls() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setReadBufferSize( 64 * 1024 );
+    long calls = compfile.getChannelReadCount();
+    InputStream in = compfile.getInputStream( "b" );
+    while ( in.read() >= 0 )
+      ;
+    in.close();
+    assertTrue( "one read should fill the buffer", compfile.getChannelReadCount() - calls <= 2 );
+    compfile.close();
+  }
+}
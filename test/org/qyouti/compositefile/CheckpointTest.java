@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries read back the same after the archive is closed and opened
+ * again with each kind of index checkpoint, including when entries were
+ * added by a session that did not keep the checkpoint up to date.
+ */
+public class CheckpointTest
+{
+  static final int ENTRIES = 100;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "checkpoint.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void roundTripWithoutCheckpoint() throws Exception
+  {
+    roundTrip( CompositeFile.CHECKPOINT_NONE );
+  }
+
+  @Test
+  public void roundTripWithCheckpointInArchive() throws Exception
+  {
+    roundTrip( CompositeFile.CHECKPOINT_IN_ARCHIVE );
+  }
+
+  @Test
+  public void roundTripWithSidecarCheckpoint() throws Exception
+  {
+    roundTrip( CompositeFile.CHECKPOINT_SIDECAR );
+  }
+
+  void roundTrip( int checkpointmode ) throws Exception
+  {
+    Map<String,Integer> versions = new HashMap<>();
+    CompositeFile compfile = open( checkpointmode );
+    for ( int i=0; i<ENTRIES; i++ )
+    {
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+      versions.put( "entry" + i, 0 );
+    }
+    compfile.close();
+
+    // a second session on top of the first, which may have a checkpoint
+    compfile = open( checkpointmode );
+    verify( compfile, versions );
+    for ( int i=0; i<ENTRIES; i+=3 )
+    {
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 1 ), true );
+      versions.put( "entry" + i, 1 );
+    }
+    compfile.close();
+
+    // a session which does not keep a checkpoint leaves it behind
+    compfile = open( CompositeFile.CHECKPOINT_NONE );
+    for ( int i=1; i<ENTRIES; i+=3 )
+    {
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 2 ), true );
+      versions.put( "entry" + i, 2 );
+    }
+    compfile.close();
+
+    compfile = open( checkpointmode );
+    verify( compfile, versions );
+    compfile.close();
+
+    // every header is read when there is no checkpoint to trust
+    new File( file.getPath() + ".index" ).delete();
+    compfile = open( CompositeFile.CHECKPOINT_NONE );
+    verify( compfile, versions );
+    compfile.close();
+
+    // still a plain tar archive to other tools
+    List<String> names = TestFiles.tarNames( file );
+    for ( int i=0; i<ENTRIES; i++ )
+      assertTrue( "entry" + i, names.contains( "entry" + i ) );
+  }
+
+  @Test
+  public void closeReleasesFileWhenCheckpointFails() throws Exception
+  {
+    CompositeFile compfile = open( CompositeFile.CHECKPOINT_SIDECAR );
+    compfile.put( "entry", TestFiles.content( "entry", 0 ), false );
+    // the sidecar is written to a temporary file first, which cannot be made
+    File temp = new File( file.getPath() + ".index.tmp" );
+    assertTrue( temp.mkdir() );
+    try
+    {
+      compfile.close();
+      fail( "Checkpoint written in place of a directory" );
+    }
+    catch ( IOException ex )
+    {
+      // expected
+    }
+    temp.delete();
+
+    // a leaked lock or cached instance would stop the file being used again
+    CompositeFile reopened = CompositeFile.getCompositeFile( file );
+    assertTrue( reopened != compfile );
+    assertArrayEquals( TestFiles.content( "entry", 0 ), reopened.readAllBytes( "entry" ) );
+    reopened.close();
+  }
+
+  CompositeFile open( int checkpointmode ) throws IOException
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setIndexCheckpoint( checkpointmode );
+    return compfile;
+  }
+
+  static void verify( CompositeFile compfile, Map<String,Integer> versions ) throws IOException
+  {
+    for ( Map.Entry<String,Integer> e : versions.entrySet() )
+      assertArrayEquals( e.getKey(), TestFiles.content( e.getKey(), e.getValue() ), compfile.readAllBytes( e.getKey() ) );
+  }
+}
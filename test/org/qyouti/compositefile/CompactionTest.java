@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compaction with readers and a writer running at the same time. The
+ * writer never has an entry refused.
+ */
+public class CompactionTest
+{
+  static final int ENTRIES = 200;
+  static final int WRITES = 2000;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "compaction.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void compactWhileReadingAndWriting() throws Exception
+  {
+    final ConcurrentHashMap<String,Integer> versions = new ConcurrentHashMap<>();
+    final CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.OS_MANAGED );
+    for ( int i=0; i<ENTRIES; i++ )
+    {
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+      versions.put( "entry" + i, 0 );
+    }
+
+    final AtomicBoolean stop = new AtomicBoolean( false );
+    final AtomicInteger replaced = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for ( int r=0; r<3; r++ )
+    {
+      final int seed = r;
+      threads.add( new Thread( () ->
+      {
+        Random random = new Random( seed );
+        try
+        {
+          while ( !stop.get() )
+          {
+            String name = "entry" + random.nextInt( ENTRIES );
+            TestFiles.check( name, compfile.readAllBytes( name ) );
+            try ( InputStream in = compfile.getInputStream( name ) )
+            {
+              TestFiles.check( name, TestFiles.readAll( in ) );
+            }
+          }
+        }
+        catch ( Throwable th )
+        {
+          failure.compareAndSet( null, th );
+        }
+      } ) );
+    }
+    threads.add( new Thread( () ->
+    {
+      Random random = new Random( 99 );
+      try
+      {
+        for ( int n=0; n<WRITES && failure.get() == null; n++ )
+        {
+          String name = "entry" + random.nextInt( ENTRIES );
+          int version = versions.get( name ) + 1;
+          compfile.put( name, TestFiles.content( name, version ), true );
+          versions.put( name, version );
+          replaced.incrementAndGet();
+        }
+      }
+      catch ( Throwable th )
+      {
+        failure.compareAndSet( null, th );
+      }
+    } ) );
+    Thread compactor = new Thread( () ->
+    {
+      try
+      {
+        while ( !stop.get() )
+          compfile.compact( 0L );
+      }
+      catch ( Throwable th )
+      {
+        failure.compareAndSet( null, th );
+      }
+    } );
+
+    for ( Thread t : threads )
+      t.start();
+    compactor.start();
+    threads.get( threads.size() - 1 ).join();
+    stop.set( true );
+    for ( Thread t : threads )
+      t.join();
+    compactor.join();
+    if ( failure.get() != null )
+      throw new AssertionError( "Failed during compaction", failure.get() );
+
+    assertEquals( "writes that went in", WRITES, replaced.get() );
+    compfile.compact( 0L );
+    assertEquals( "dead bytes after compaction", 0L, compfile.getDeadBytes() );
+    compfile.close();
+
+    CompositeFile reopened = CompositeFile.getCompositeFile( file );
+    try
+    {
+      for ( int i=0; i<ENTRIES; i++ )
+        assertArrayEquals( "entry" + i, TestFiles.content( "entry" + i, versions.get( "entry" + i ) ),
+                           reopened.readAllBytes( "entry" + i ) );
+    }
+    finally
+    {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void compactToWhileWriting() throws Exception
+  {
+    final CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.OS_MANAGED );
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread writer = new Thread( () ->
+    {
+      Random random = new Random( 7 );
+      try
+      {
+        for ( int n=0; n<WRITES && failure.get() == null; n++ )
+        {
+          String name = "entry" + random.nextInt( ENTRIES );
+          compfile.put( name, TestFiles.content( name, n + 1 ), true );
+          if ( n % 10 == 0 )
+            compfile.put( "new" + n, TestFiles.content( "new" + n, 0 ), false );
+          written.incrementAndGet();
+        }
+      }
+      catch ( Throwable th )
+      {
+        failure.compareAndSet( null, th );
+      }
+    } );
+    writer.start();
+    int copies = 0;
+    while ( writer.isAlive() || copies == 0 )
+    {
+      File target = new File( dir, "copy" + copies + ".tar" );
+      compfile.compactTo( target );
+      CompositeFile copy = CompositeFile.getCompositeFile( target );
+      try
+      {
+        for ( int i=0; i<ENTRIES; i++ )
+          TestFiles.check( "entry" + i, copy.readAllBytes( "entry" + i ) );
+        assertEquals( 0L, copy.getDeadBytes() );
+      }
+      finally
+      {
+        copy.close();
+      }
+      copies++;
+    }
+    writer.join();
+    if ( failure.get() != null )
+      throw new AssertionError( "Failed during compaction", failure.get() );
+    assertEquals( "writes that went in", WRITES, written.get() );
+    compfile.close();
+  }
+}
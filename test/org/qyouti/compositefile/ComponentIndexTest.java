@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The compact index finds, replaces and removes entries, and does not
+ * keep growing when names are deleted over and over.
+ */
+public class ComponentIndexTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "index.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void putFindAndRemove()
+  {
+    ComponentIndex index = new ComponentIndex();
+    for ( int i=0; i<10000; i++ )
+      index.put( "entry" + i + "\u00e9", i * 1024L, i * 1024L + 512L, i * 1024L + 1024L, i, i );
+    assertEquals( 10000, index.size() );
+    // replacing reuses the slot
+    index.put( "entry5\u00e9", 1L, 2L, 3L, 5L, 5L );
+    assertEquals( 10000, index.slots() );
+    assertEquals( 2L, index.getDataPos( index.find( "entry5\u00e9" ) ) );
+    assertEquals( -1, index.find( "entry5" ) );
+    assertEquals( -1, index.find( "missing" ) );
+
+    for ( int i=0; i<10000; i+=2 )
+      index.remove( "entry" + i + "\u00e9" );
+    assertEquals( 5000, index.size() );
+    assertEquals( -1, index.find( "entry4\u00e9" ) );
+    index.pack();
+    assertEquals( 5000, index.slots() );
+    for ( int i=0; i<10000; i++ )
+    {
+      int slot = index.find( "entry" + i + "\u00e9" );
+      if ( i % 2 == 0 )
+        assertEquals( -1, slot );
+      else
+      {
+        assertEquals( "entry" + i + "\u00e9", index.getName( slot ) );
+        assertEquals( i, index.getSize( slot ) );
+      }
+    }
+    // and names can come back after packing
+    index.put( "entry4\u00e9", 7L, 8L, 9L, 10L, 11L );
+    assertEquals( 7L, index.getPos( index.find( "entry4\u00e9" ) ) );
+  }
+
+  @Test
+  public void deletedNamesDoNotAccumulate() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.OS_MANAGED );
+    compfile.put( "kept", TestFiles.content( "kept", 0 ), false );
+    for ( int i=0; i<20000; i++ )
+    {
+      compfile.put( "temporary" + i, new byte[10], false );
+      compfile.delete( "temporary" + i );
+    }
+    assertTrue( "index has " + compfile.componentindex.slots() + " slots",
+                compfile.componentindex.slots() < 3000 );
+
+    compfile.compact( 0L );
+    assertEquals( 1, compfile.componentindex.slots() );
+    assertArrayEquals( TestFiles.content( "kept", 0 ), compfile.readAllBytes( "kept" ) );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    assertEquals( 1, compfile.componentindex.slots() );
+    assertFalse( compfile.exists( "temporary0" ) );
+    assertArrayEquals( TestFiles.content( "kept", 0 ), compfile.readAllBytes( "kept" ) );
+    compfile.close();
+  }
+}
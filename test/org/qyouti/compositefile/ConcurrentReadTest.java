@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Any number of input streams can be open on an archive at once, in one
+ * thread or many, each with a position of its own.
+ */
+public class ConcurrentReadTest
+{
+  static final int ENTRIES = 100;
+  static final int THREADS = 8;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "concurrentread.tar" );
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 1 ), false );
+    compfile.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void streamsKeepTheirOwnPositions() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    InputStream a = compfile.getInputStream( "entry1" );
+    InputStream b = compfile.getInputStream( "entry2" );
+    InputStream c = compfile.getInputStream( "entry1" );
+    byte[] ea = TestFiles.content( "entry1", 1 );
+    byte[] eb = TestFiles.content( "entry2", 1 );
+    for ( int i=0; i<Math.max( ea.length, eb.length ); i++ )
+    {
+      assertEquals( i < ea.length ? ea[i] & 0xff : -1, a.read() );
+      assertEquals( i < eb.length ? eb[i] & 0xff : -1, b.read() );
+    }
+    a.close();
+    b.close();
+    TestFiles.check( "entry1", TestFiles.readAll( c ) );
+    c.close();
+    compfile.close();
+  }
+
+  @Test
+  public void manyThreadsReadAtOnce() throws Exception
+  {
+    final CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for ( int t=0; t<THREADS; t++ )
+    {
+      final int seed = t;
+      threads.add( new Thread( () ->
+      {
+        Random random = new Random( seed );
+        try
+        {
+          for ( int n=0; n<500; n++ )
+          {
+            String name = "entry" + random.nextInt( ENTRIES );
+            try ( InputStream in = compfile.getInputStream( name ) )
+            {
+              TestFiles.check( name, TestFiles.readAll( in ) );
+            }
+          }
+        }
+        catch ( Throwable th )
+        {
+          failure.compareAndSet( null, th );
+        }
+      } ) );
+    }
+    for ( Thread thread : threads )
+      thread.start();
+    for ( Thread thread : threads )
+      thread.join();
+    if ( failure.get() != null )
+      throw new AssertionError( "A read failed", failure.get() );
+    compfile.close();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * With the trailer deferred the end of archive records are only written
+ * when needed, but the archive is a valid tar archive once closed and an
+ * archive left without them, as after a crash, can still be opened. A
+ * crash is simulated by copying the archive while it is open.
+ */
+public class DeferredTrailerTest
+{
+  static final int ENTRIES = 50;
+
+  File dir;
+  File file;
+  File crashed;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "deferred.tar" );
+    crashed = new File( dir, "crashed.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void closedArchiveIsValidTar() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDeferredTrailer( true );
+    write( compfile );
+    OutputStream out = compfile.getOutputStream( "stream", false );
+    out.write( TestFiles.content( "stream", 0 ) );
+    out.close();
+    compfile.close();
+
+    List<String> names = TestFiles.tarNames( file );
+    assertEquals( ENTRIES + 1, names.size() );
+    assertEquals( 0L, file.length() % 512 );
+    byte[] all = Files.readAllBytes( file.toPath() );
+    assertArrayEquals( "end of archive records", new byte[1024], Arrays.copyOfRange( all, all.length - 1024, all.length ) );
+
+    compfile = CompositeFile.getCompositeFile( file );
+    verify( compfile );
+    TestFiles.check( "stream", compfile.readAllBytes( "stream" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void missingTrailerIsFoundOnOpen() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDeferredTrailer( true );
+    write( compfile );
+    compfile.put( "unflushed", TestFiles.content( "unflushed", 0 ), false );
+    crash();
+    compfile.put( "later", TestFiles.content( "later", 0 ), false );
+    compfile.close();
+    byte[] all = Files.readAllBytes( crashed.toPath() );
+    byte[] last = Arrays.copyOfRange( all, all.length - 512, all.length );
+    assertFalse( "the copy should end with data, not a trailer", Arrays.equals( new byte[512], last ) );
+
+    compfile = CompositeFile.getCompositeFile( crashed );
+    verify( compfile );
+    TestFiles.check( "unflushed", compfile.readAllBytes( "unflushed" ) );
+    assertFalse( compfile.exists( "later" ) );
+    compfile.put( "after", TestFiles.content( "after", 0 ), false );
+    compfile.close();
+    List<String> names = TestFiles.tarNames( crashed );
+    assertEquals( "after", names.get( names.size() - 1 ) );
+
+    compfile = CompositeFile.getCompositeFile( crashed );
+    verify( compfile );
+    TestFiles.check( "after", compfile.readAllBytes( "after" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void staleCheckpointAfterDeferredTrailer() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setIndexCheckpoint( CompositeFile.CHECKPOINT_IN_ARCHIVE );
+    write( compfile );
+    compfile.close();
+
+    // the new entry is smaller than the checkpoint it partly overwrites
+    compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDeferredTrailer( true );
+    compfile.put( "small", new byte[10], false );
+    crash();
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( crashed );
+    verify( compfile );
+    compfile.close();
+  }
+
+  void write( CompositeFile compfile ) throws IOException
+  {
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+    compfile.flush();
+  }
+
+  void verify( CompositeFile compfile ) throws IOException
+  {
+    for ( int i=0; i<ENTRIES; i++ )
+      assertArrayEquals( "entry" + i, TestFiles.content( "entry" + i, 0 ), compfile.readAllBytes( "entry" + i ) );
+  }
+
+  void crash() throws IOException
+  {
+    Files.copy( file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING );
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Deleted entries stay deleted when the archive is opened again, their
+ * names can be used again, and the space they took is counted as dead
+ * until compaction reclaims it.
+ */
+public class DeleteTest
+{
+  static final int ENTRIES = 20;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "delete.tar" );
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+    compfile.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void deletedEntriesStayDeleted() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<ENTRIES; i+=2 )
+      compfile.delete( "entry" + i ).get();
+    try
+    {
+      compfile.delete( "entry0" );
+      fail( "Deleting a deleted entry should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    verify( compfile, -1 );
+    compfile.close();
+
+    // other tar tools just see the tombstones as files
+    List<String> names = TestFiles.tarNames( file );
+    assertEquals( ENTRIES + ENTRIES / 2, names.size() );
+    assertEquals( CompositeFile.DELETED_NAME, names.get( names.size() - 1 ) );
+
+    compfile = CompositeFile.getCompositeFile( file );
+    verify( compfile, -1 );
+    // a name can be used again once deleted
+    compfile.put( "entry0", TestFiles.content( "entry0", 1 ), false );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    verify( compfile, 0 );
+    compfile.close();
+  }
+
+  @Test
+  public void deadSpaceIsTracked() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    assertEquals( 0L, compfile.getDeadBytes() );
+    long size = compfile.getSize( "entry3" );
+    compfile.delete( "entry3" );
+    // the entry, its header and a two record tombstone
+    assertEquals( 512L + TarHeaderScanner.padded( size ) + 1024L, compfile.getDeadBytes() );
+    assertEquals( 2, compfile.getDeadRangeCount() );
+    long dead = compfile.getDeadBytes();
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    assertEquals( "dead bytes found again on open", dead, compfile.getDeadBytes() );
+    compfile.compact( 0L );
+    assertEquals( 0L, compfile.getDeadBytes() );
+    assertFalse( compfile.exists( "entry3" ) );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    assertFalse( compfile.exists( "entry3" ) );
+    TestFiles.check( "entry4", compfile.readAllBytes( "entry4" ) );
+    compfile.close();
+  }
+
+  /**
+   * Even numbered entries are expected to be deleted, except the one
+   * given, which should be at version 1.
+   */
+  static void verify( CompositeFile compfile, int readded ) throws IOException
+  {
+    for ( int i=0; i<ENTRIES; i++ )
+    {
+      String name = "entry" + i;
+      if ( i == readded )
+        assertArrayEquals( name, TestFiles.content( name, 1 ), compfile.readAllBytes( name ) );
+      else if ( i % 2 == 0 )
+        assertFalse( name, compfile.exists( name ) );
+      else
+        TestFiles.check( name, compfile.readAllBytes( name ) );
+    }
+  }
+}
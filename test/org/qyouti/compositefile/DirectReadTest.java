@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries are read straight from their data offset, both when they were
+ * written in this session and when they were found by indexing, and
+ * whatever headers came before the data.
+ */
+public class DirectReadTest
+{
+  File dir;
+  File file;
+  String longname;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "directread.tar" );
+    StringBuilder sb = new StringBuilder();
+    while ( sb.length() < 200 )
+      sb.append( "directory/" );
+    longname = sb.append( "entry" ).toString();
+    // extension headers put the data more than one record after the header
+    try ( TarArchiveOutputStream tos = new TarArchiveOutputStream( new FileOutputStream( file ) ) )
+    {
+      tos.setLongFileMode( TarArchiveOutputStream.LONGFILE_POSIX );
+      for ( String name : new String[] { "first", longname, "empty" } )
+      {
+        byte[] data = name.equals( "empty" ) ? new byte[0] : TestFiles.content( name, 1 );
+        TarArchiveEntry entry = new TarArchiveEntry( name );
+        entry.setSize( data.length );
+        tos.putArchiveEntry( entry );
+        tos.write( data );
+        tos.closeArchiveEntry();
+      }
+    }
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void allReadPathsAgree() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "added", TestFiles.content( "added", 1 ), false );
+    for ( String name : new String[] { "first", longname, "added" } )
+    {
+      byte[] expected = TestFiles.content( name, 1 );
+      assertArrayEquals( name, expected, compfile.readAllBytes( name ) );
+      try ( InputStream in = compfile.getInputStream( name ) )
+      {
+        assertArrayEquals( name, expected, TestFiles.readAll( in ) );
+      }
+      ByteBuffer bb = compfile.getByteBuffer( name );
+      assertTrue( bb.isReadOnly() );
+      assertEquals( 0L, bb.position() );
+      assertEquals( expected.length, bb.remaining() );
+      byte[] b = new byte[bb.remaining()];
+      bb.get( b );
+      assertArrayEquals( name, expected, b );
+    }
+    assertEquals( 0, compfile.readAllBytes( "empty" ).length );
+    assertEquals( 0, compfile.getByteBuffer( "empty" ).remaining() );
+    assertEquals( -1, compfile.getInputStream( "empty" ).read() );
+    compfile.close();
+  }
+
+  @Test
+  public void missingEntriesAreReported() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    try
+    {
+      compfile.readAllBytes( "missing" );
+      fail( "readAllBytes should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    try
+    {
+      compfile.getByteBuffer( "missing" );
+      fail( "getByteBuffer should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    try
+    {
+      compfile.getInputStream( "missing" );
+      fail( "getInputStream should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    compfile.close();
+  }
+}
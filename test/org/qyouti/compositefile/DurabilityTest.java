@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The futures given for committed entries complete under each durability
+ * policy, and waiting entries do not each hold a future of their own.
+ */
+public class DurabilityTest
+{
+  static final int ENTRIES = 10000;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "durability.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void syncPoliciesCompleteAtOnce() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.SYNC_EACH_WRITE );
+    assertTrue( compfile.put( "each", new byte[10], false ).isDone() );
+    compfile.setDurability( CompositeFile.SYNC_ON_ENTRY_CLOSE );
+    assertTrue( compfile.put( "close", new byte[10], false ).isDone() );
+    compfile.close();
+  }
+
+  @Test
+  public void groupCommitCompletesWithoutFlush() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.GROUP_COMMIT );
+    compfile.setGroupCommitWindow( 5L, 1024L * 1024L );
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for ( int i=0; i<1000; i++ )
+      futures.add( compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false ) );
+    for ( CompletableFuture<Void> future : futures )
+      future.get( 10L, TimeUnit.SECONDS );
+    compfile.close();
+  }
+
+  @Test
+  public void osManagedSharesOneFutureUntilFlush() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setDurability( CompositeFile.OS_MANAGED );
+    IdentityHashMap<CompletableFuture<Void>,Boolean> distinct = new IdentityHashMap<>();
+    CompletableFuture<Void> future = null;
+    for ( int i=0; i<ENTRIES; i++ )
+    {
+      future = compfile.put( "entry" + i, new byte[i % 100], false );
+      distinct.put( future, Boolean.TRUE );
+    }
+    assertEquals( "futures held for waiting entries", 1, distinct.size() );
+    assertFalse( future.isDone() );
+    compfile.flush();
+    assertTrue( future.isDone() );
+    assertFalse( future.isCompletedExceptionally() );
+
+    // a new generation after the force
+    CompletableFuture<Void> next = compfile.put( "after", new byte[10], false );
+    assertTrue( next != future );
+    assertFalse( next.isDone() );
+    compfile.close();
+    assertTrue( next.isDone() );
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries copied out with transferTo() and extractTo() hold exactly the
+ * content of the entry.
+ */
+public class ExtractTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "extract.tar" );
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<5; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 1 ), false );
+    compfile.put( "empty", new byte[0], false );
+    compfile.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void transferToChannels() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    byte[] expected = TestFiles.content( "entry2", 1 );
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals( expected.length, compfile.transferTo( "entry2", Channels.newChannel( out ) ) );
+    assertArrayEquals( expected, out.toByteArray() );
+
+    // a file channel is written from its position onwards
+    File target = new File( dir, "target" );
+    try ( FileChannel fc = FileChannel.open( target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE ) )
+    {
+      fc.write( ByteBuffer.wrap( new byte[] { 1, 2, 3 } ) );
+      assertEquals( expected.length, compfile.transferTo( "entry2", fc ) );
+      assertEquals( 3L + expected.length, fc.position() );
+    }
+    byte[] b = Files.readAllBytes( target.toPath() );
+    assertArrayEquals( expected, Arrays.copyOfRange( b, 3, b.length ) );
+
+    assertEquals( 0L, compfile.transferTo( "empty", Channels.newChannel( new ByteArrayOutputStream() ) ) );
+    compfile.close();
+  }
+
+  @Test
+  public void extractToFiles() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    File target = new File( dir, "extracted" );
+    // a longer file already there is replaced, not overwritten in part
+    Files.write( target.toPath(), new byte[100000] );
+    for ( int i=0; i<5; i++ )
+    {
+      byte[] expected = TestFiles.content( "entry" + i, 1 );
+      assertEquals( expected.length, compfile.extractTo( "entry" + i, target.toPath() ) );
+      assertArrayEquals( expected, Files.readAllBytes( target.toPath() ) );
+    }
+    assertEquals( 0L, compfile.extractTo( "empty", target.toPath() ) );
+    assertEquals( 0L, target.length() );
+    try
+    {
+      compfile.extractTo( "missing", target.toPath() );
+      fail( "Extracting a missing entry should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    compfile.close();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries written with reserved space grow in place with appendTo(), stay
+ * readable by other tar tools and keep their space through compaction.
+ */
+public class GrowableEntryTest
+{
+  static final int RESERVE = 64 * 1024;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "growable.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void appendGrowsEntryInPlace() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    byte[] first = TestFiles.content( "first", 1 );
+    OutputStream out = compfile.getGrowableOutputStream( "log", RESERVE, false );
+    out.write( first );
+    out.close();
+    expected.write( first );
+    compfile.put( "after", TestFiles.content( "after", 1 ), false );
+    long capacity = compfile.getAppendCapacity( "log" );
+    assertTrue( "capacity " + capacity, capacity >= RESERVE );
+    long length = file.length();
+
+    byte[] second = new byte[3000];
+    Arrays.fill( second, (byte)7 );
+    out = compfile.appendTo( "log" );
+    out.write( second );
+    out.close();
+    expected.write( second );
+    assertEquals( "The file should not grow", length, file.length() );
+    assertEquals( capacity - second.length, compfile.getAppendCapacity( "log" ) );
+    assertArrayEquals( expected.toByteArray(), compfile.readAllBytes( "log" ) );
+    TestFiles.check( "after", compfile.readAllBytes( "after" ) );
+    compfile.close();
+
+    assertEquals( Arrays.asList( "log", CompositeFile.RESERVE_NAME, "after" ), TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertArrayEquals( expected.toByteArray(), compfile.readAllBytes( "log" ) );
+    assertEquals( capacity - second.length, compfile.getAppendCapacity( "log" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void appendingTooMuchFails() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    byte[] first = TestFiles.content( "first", 1 );
+    OutputStream out = compfile.getGrowableOutputStream( "log", 1000, false );
+    out.write( first );
+    out.close();
+    long capacity = compfile.getAppendCapacity( "log" );
+    out = compfile.appendTo( "log" );
+    try
+    {
+      out.write( new byte[(int)capacity + 1] );
+      fail( "Writing past the reserved space should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    out.close();
+    assertArrayEquals( first, compfile.readAllBytes( "log" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void reserveSurvivesCompaction() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "dead", TestFiles.content( "dead", 1 ), false );
+    byte[] first = TestFiles.content( "first", 1 );
+    OutputStream out = compfile.getGrowableOutputStream( "log", RESERVE, false );
+    out.write( first );
+    out.close();
+    long capacity = compfile.getAppendCapacity( "log" );
+    compfile.delete( "dead" );
+    compfile.compact( 0L );
+    assertEquals( capacity, compfile.getAppendCapacity( "log" ) );
+
+    out = compfile.appendTo( "log" );
+    out.write( first );
+    out.close();
+    byte[] both = Arrays.copyOf( first, first.length * 2 );
+    System.arraycopy( first, 0, both, first.length, first.length );
+    assertArrayEquals( both, compfile.readAllBytes( "log" ) );
+
+    // a replacement does not keep the reserve
+    compfile.put( "log", first, true );
+    assertEquals( TarHeaderScanner.padded( first.length ) - first.length, compfile.getAppendCapacity( "log" ) );
+    compfile.close();
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Headers written before the size was known are corrected so that a tar
+ * reader, which checks the checksum, finds the right size. That includes
+ * headers whose size is in a PAX extended header.
+ */
+public class HeaderPatchTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "headerpatch.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void unknownSizesArePatched() throws Exception
+  {
+    int[] sizes = { 0, 1, 511, 512, 513, 100000 };
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    // nothing is held back so every header is written before its data
+    compfile.setStagingSize( 0 );
+    Random random = new Random( 0 );
+    for ( int size : sizes )
+    {
+      byte[] data = new byte[size];
+      random.nextBytes( data );
+      OutputStream out = compfile.getOutputStream( "size" + size, false );
+      out.write( data );
+      out.close();
+    }
+    compfile.close();
+
+    random = new Random( 0 );
+    try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+    {
+      for ( int size : sizes )
+      {
+        byte[] data = new byte[size];
+        random.nextBytes( data );
+        TarArchiveEntry entry = tis.getNextEntry();
+        assertEquals( "size" + size, entry.getName() );
+        assertEquals( size, entry.getSize() );
+        assertArrayEquals( data, TestFiles.readAll( tis ) );
+      }
+      assertNull( "no more entries", tis.getNextEntry() );
+    }
+  }
+
+  @Test
+  public void paxSizeIsPatched() throws Exception
+  {
+    // a header for an entry too big for the octal size field
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    TarArchiveOutputStream tos = new TarArchiveOutputStream( header, 512 );
+    tos.setBigNumberMode( TarArchiveOutputStream.BIGNUMBER_POSIX );
+    TarArchiveEntry big = new TarArchiveEntry( "big" );
+    big.setSize( 9L * 1024L * 1024L * 1024L );
+    tos.putArchiveEntry( big );
+    tos.flush();
+    byte[] head = header.toByteArray();
+    assertTrue( "there should be a PAX header", head.length > 512 );
+    byte[] data = TestFiles.content( "big", 1 );
+
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "first", TestFiles.content( "first", 1 ), false );
+    // the header and the data go where the end of archive was
+    long pos = file.length() - 1024L;
+    try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+    {
+      raf.seek( pos );
+      raf.write( head );
+      raf.write( data );
+      raf.write( new byte[(int)(TarHeaderScanner.padded( data.length ) - data.length) + 1024] );
+    }
+    TarHeaderPatcher patcher = new TarHeaderPatcher( compfile );
+    try
+    {
+      patcher.patch( pos, pos + head.length, Long.MAX_VALUE, -1L );
+      fail( "A size too long for the PAX record should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    patcher.patch( pos, pos + head.length, data.length, -1L );
+    compfile.close();
+
+    try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+    {
+      assertEquals( "first", tis.getNextEntry().getName() );
+      TarArchiveEntry entry = tis.getNextEntry();
+      assertEquals( "big", entry.getName() );
+      assertEquals( data.length, entry.getSize() );
+      assertArrayEquals( data, TestFiles.readAll( tis ) );
+    }
+    compfile = CompositeFile.getCompositeFile( file );
+    assertArrayEquals( data, compfile.readAllBytes( "big" ) );
+    compfile.close();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The index built by the raw header scanner when an archive is opened
+ * agrees with a full tar reader, including for long names held in GNU and
+ * PAX extension headers.
+ */
+public class HeaderScanTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "headerscan.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void scanMatchesTarReader() throws Exception
+  {
+    StringBuilder longname = new StringBuilder();
+    while ( longname.length() < 200 )
+      longname.append( "directory/" );
+    try ( TarArchiveOutputStream tos = new TarArchiveOutputStream( new FileOutputStream( file ) ) )
+    {
+      write( tos, "plain" );
+      tos.setLongFileMode( TarArchiveOutputStream.LONGFILE_GNU );
+      write( tos, longname + "gnu" );
+      tos.setLongFileMode( TarArchiveOutputStream.LONGFILE_POSIX );
+      write( tos, longname + "pax" );
+      tos.setAddPaxHeadersForNonAsciiNames( true );
+      write( tos, "caf\u00e9" );
+      for ( int i=0; i<200; i++ )
+        write( tos, "entry" + i );
+      write( tos, "last" );
+    }
+
+    Map<String,Long> expected = new LinkedHashMap<>();
+    try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+    {
+      TarArchiveEntry entry;
+      while ( (entry = tis.getNextEntry()) != null )
+        expected.put( entry.getName(), entry.getSize() );
+    }
+    assertEquals( 205, expected.size() );
+
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( Map.Entry<String,Long> e : expected.entrySet() )
+    {
+      assertTrue( e.getKey(), compfile.exists( e.getKey() ) );
+      assertEquals( e.getKey(), (long)e.getValue(), compfile.getSize( e.getKey() ) );
+      TestFiles.check( e.getKey(), compfile.readAllBytes( e.getKey() ) );
+    }
+    // entries added after the foreign ones are found again too
+    compfile.put( "added", TestFiles.content( "added", 1 ), false );
+    compfile.close();
+    compfile = CompositeFile.getCompositeFile( file );
+    for ( String name : expected.keySet() )
+      TestFiles.check( name, compfile.readAllBytes( name ) );
+    TestFiles.check( "added", compfile.readAllBytes( "added" ) );
+    compfile.close();
+  }
+
+  static void write( TarArchiveOutputStream tos, String name ) throws IOException
+  {
+    byte[] data = TestFiles.content( name, 1 );
+    TarArchiveEntry entry = new TarArchiveEntry( name );
+    entry.setSize( data.length );
+    tos.putArchiveEntry( entry );
+    tos.write( data );
+    tos.closeArchiveEntry();
+  }
+}
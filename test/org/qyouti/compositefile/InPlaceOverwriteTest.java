@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Replacements that fit in the space of the entry they replace are
+ * written over it, so the archive does not grow, unless the old entry is
+ * being read or the replacement is too big.
+ */
+public class InPlaceOverwriteTest
+{
+  static final int UPDATES = 200;
+
+  File dir;
+  File file;
+  File copy;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "inplace.tar" );
+    copy = new File( dir, "copy.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void repeatedUpdatesKeepTheSize() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setOverwriteInPlace( true );
+    compfile.put( "state", state( 0, 2000 ), false );
+    compfile.put( "other", TestFiles.content( "other", 0 ), false );
+    long length = file.length();
+    Random random = new Random( 0 );
+    byte[] last = null;
+    for ( int i=1; i<=UPDATES; i++ )
+    {
+      // sizes that take the same number of records as the first version
+      last = state( i, 1537 + random.nextInt( 512 ) );
+      compfile.put( "state", last, true ).get();
+      assertEquals( "length after update " + i, length, file.length() );
+      assertArrayEquals( last, compfile.readAllBytes( "state" ) );
+      if ( i % 50 == 0 )
+      {
+        // the file as it is now opens with the latest version
+        Files.copy( file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        CompositeFile copied = CompositeFile.getCompositeFile( copy );
+        assertArrayEquals( last, copied.readAllBytes( "state" ) );
+        TestFiles.check( "other", copied.readAllBytes( "other" ) );
+        copied.close();
+      }
+    }
+    compfile.close();
+
+    assertEquals( "state", TestFiles.tarNames( file ).get( 0 ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertArrayEquals( last, compfile.readAllBytes( "state" ) );
+    TestFiles.check( "other", compfile.readAllBytes( "other" ) );
+    compfile.close();
+  }
+
+  @Test
+  public void appendedWhenItDoesNotFitOrIsBeingRead() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setOverwriteInPlace( true );
+    byte[] first = state( 0, 1000 );
+    compfile.put( "state", first, false );
+    long length = file.length();
+
+    byte[] bigger = state( 1, 5000 );
+    compfile.put( "state", bigger, true );
+    assertTrue( "a bigger replacement goes at the end", file.length() > length );
+    assertArrayEquals( bigger, compfile.readAllBytes( "state" ) );
+
+    length = file.length();
+    InputStream in = compfile.getInputStream( "state" );
+    byte[] smaller = state( 2, 100 );
+    compfile.put( "state", smaller, true );
+    assertTrue( "an entry being read is not overwritten", file.length() > length );
+    assertArrayEquals( bigger, TestFiles.readAll( in ) );
+    in.close();
+    assertArrayEquals( smaller, compfile.readAllBytes( "state" ) );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    assertArrayEquals( smaller, compfile.readAllBytes( "state" ) );
+    compfile.close();
+  }
+
+  static byte[] state( int version, int size )
+  {
+    byte[] b = new byte[size];
+    new Random( version ).nextBytes( b );
+    return b;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries written with their size given up front have the right size in
+ * the header, and an entry that does not match its declared size leaves
+ * no trace in the archive.
+ */
+public class KnownSizeTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "knownsize.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void knownSizeEntriesRoundTrip() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    byte[] a = TestFiles.content( "a", 1 );
+    OutputStream out = compfile.getOutputStream( "a", a.length, false );
+    out.write( a );
+    out.close();
+    byte[] b = TestFiles.content( "b", 1 );
+    compfile.put( "b", b, false );
+    assertEquals( a.length, compfile.getTarArchiveEntry( "a" ).getSize() );
+    TestFiles.check( "a", TestFiles.readAll( compfile.getInputStream( "a" ) ) );
+    compfile.close();
+
+    assertEquals( Arrays.asList( "a", "b" ), TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertEquals( a.length, compfile.getSize( "a" ) );
+    TestFiles.check( "a", TestFiles.readAll( compfile.getInputStream( "a" ) ) );
+    TestFiles.check( "b", TestFiles.readAll( compfile.getInputStream( "b" ) ) );
+    compfile.close();
+  }
+
+  @Test
+  public void wrongSizeLeavesNothingBehind() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setPreallocation( 0L );
+    compfile.put( "a", TestFiles.content( "a", 1 ), false );
+    long length = file.length();
+
+    OutputStream out = compfile.getOutputStream( "short", 1024L * 1024L, false );
+    out.write( new byte[600 * 1024] );
+    try
+    {
+      out.close();
+      fail( "Closing a short entry should fail" );
+    }
+    catch ( IOException ex )
+    {
+    }
+    assertEquals( "Data of the failed entry should be dropped", length, file.length() );
+    assertFalse( compfile.exists( "short" ) );
+
+    compfile.setDeferredTrailer( true );
+    compfile.put( "b", TestFiles.content( "b", 1 ), false );
+    compfile.close();
+
+    assertEquals( Arrays.asList( "a", "b" ), TestFiles.tarNames( file ) );
+    compfile = CompositeFile.getCompositeFile( file );
+    assertFalse( compfile.exists( "short" ) );
+    TestFiles.check( "a", TestFiles.readAll( compfile.getInputStream( "a" ) ) );
+    TestFiles.check( "b", TestFiles.readAll( compfile.getInputStream( "b" ) ) );
+    compfile.close();
+  }
+}
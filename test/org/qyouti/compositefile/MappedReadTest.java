@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * In memory mapped mode entries are read without reads of the file, and
+ * entries added after the file was mapped can be read too.
+ */
+public class MappedReadTest
+{
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "mappedread.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void mappedReadsMakeNoReadCalls() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<20; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 1 ), false );
+    compfile.close();
+
+    compfile = CompositeFile.getCompositeFile( file );
+    compfile.setMemoryMapped( true );
+    long calls = compfile.getChannelReadCount();
+    for ( int i=0; i<20; i++ )
+    {
+      try ( InputStream in = compfile.getInputStream( "entry" + i ) )
+      {
+        in.skip( 1L );
+        assertEquals( TestFiles.content( "entry" + i, 1 ).length - 1, in.available() );
+      }
+      try ( InputStream in = compfile.getInputStream( "entry" + i ) )
+      {
+        TestFiles.check( "entry" + i, TestFiles.readAll( in ) );
+      }
+    }
+    assertEquals( "read calls", calls, compfile.getChannelReadCount() );
+    compfile.close();
+  }
+
+  @Test
+  public void entriesAddedAfterMappingCanBeRead() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setMemoryMapped( true );
+    compfile.put( "first", TestFiles.content( "first", 1 ), false );
+    ByteBuffer first = compfile.getByteBuffer( "first" );
+    for ( int i=0; i<200; i++ )
+    {
+      String name = "entry" + i;
+      compfile.put( name, TestFiles.content( name, 1 ), false );
+      try ( InputStream in = compfile.getInputStream( name ) )
+      {
+        TestFiles.check( name, TestFiles.readAll( in ) );
+      }
+      ByteBuffer bb = compfile.getByteBuffer( name );
+      byte[] b = new byte[bb.remaining()];
+      bb.get( b );
+      TestFiles.check( name, b );
+    }
+    // views handed out earlier still hold the data
+    byte[] b = new byte[first.remaining()];
+    first.get( b );
+    TestFiles.check( "first", b );
+    compfile.close();
+  }
+}
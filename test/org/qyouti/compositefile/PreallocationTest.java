@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The file grows in whole extents while it is open and is trimmed when it
+ * is closed. The preallocated space reads as the end of the archive, but
+ * an entry whose data was not all written before a crash is not mistaken
+ * for a complete one. A crash is simulated by copying the archive while
+ * it is open.
+ */
+public class PreallocationTest
+{
+  static final int ENTRIES = 50;
+  static final long EXTENT = 1024 * 1024;
+
+  File dir;
+  File file;
+  File crashed;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "preallocation.tar" );
+    crashed = new File( dir, "crashed.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void growsInExtentsAndTrimsOnClose() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setPreallocation( EXTENT );
+    for ( int i=0; i<ENTRIES; i++ )
+    {
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+      assertEquals( "length after entry " + i, 0L, file.length() % EXTENT );
+    }
+    // an ordinary tar reader stops at the zeros
+    assertEquals( ENTRIES, TestFiles.tarNames( file ).size() );
+    crash();
+    compfile.close();
+    assertTrue( "trimmed on close", file.length() % EXTENT != 0 );
+    assertEquals( ENTRIES, TestFiles.tarNames( file ).size() );
+
+    // opening a file that was not trimmed trims it when it is closed
+    compfile = CompositeFile.getCompositeFile( crashed );
+    verify( compfile );
+    compfile.close();
+    assertEquals( file.length(), crashed.length() );
+  }
+
+  @Test
+  public void tornWriteIsNotVisible() throws Exception
+  {
+    for ( int durability : new int[] { CompositeFile.SYNC_ON_ENTRY_CLOSE, CompositeFile.OS_MANAGED } )
+    {
+      file.delete();
+      CompositeFile compfile = CompositeFile.getCompositeFile( file );
+      compfile.setDurability( durability );
+      // preallocated space reads as zeros so it could pass for data
+      compfile.setPreallocation( EXTENT );
+      write( compfile );
+      byte[] torn = TestFiles.content( "torn", 0 );
+      OutputStream out = compfile.getOutputStream( "torn", 4 * EXTENT, false );
+      // write until the preallocated space covers the end of the entry
+      long written = 0L;
+      while ( file.length() < 5 * EXTENT && written + torn.length < 4 * EXTENT )
+      {
+        out.write( torn );
+        out.flush();
+        written += torn.length;
+      }
+      assertTrue( "entry not covered", file.length() >= 5 * EXTENT );
+      crash();
+      for ( ; written < 4 * EXTENT; written++ )
+        out.write( 0 );
+      out.close();
+      compfile.close();
+
+      compfile = CompositeFile.getCompositeFile( crashed );
+      assertFalse( "torn entry visible", compfile.exists( "torn" ) );
+      verify( compfile );
+      compfile.put( "after", TestFiles.content( "after", 0 ), false );
+      compfile.close();
+      assertTrue( "preallocated space left", crashed.length() % EXTENT != 0 );
+
+      compfile = CompositeFile.getCompositeFile( crashed );
+      verify( compfile );
+      assertArrayEquals( TestFiles.content( "after", 0 ), compfile.readAllBytes( "after" ) );
+      compfile.close();
+    }
+  }
+
+  void write( CompositeFile compfile ) throws IOException
+  {
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 0 ), false );
+    compfile.flush();
+  }
+
+  void verify( CompositeFile compfile ) throws IOException
+  {
+    for ( int i=0; i<ENTRIES; i++ )
+      assertArrayEquals( "entry" + i, TestFiles.content( "entry" + i, 0 ), compfile.readAllBytes( "entry" + i ) );
+  }
+
+  void crash() throws IOException
+  {
+    Files.copy( file.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING );
+  }
+}
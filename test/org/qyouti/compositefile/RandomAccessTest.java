@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Any part of an entry can be read through openChannel() or the
+ * positional read() without going through what comes before it, and
+ * nothing outside the entry can be reached.
+ */
+public class RandomAccessTest
+{
+  File dir;
+  File file;
+  byte[] data;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "randomaccess.tar" );
+    data = new byte[1024 * 1024 + 33];
+    new Random( 0 ).nextBytes( data );
+    // an entry found by indexing, then one written in this session
+    try ( TarArchiveOutputStream tos = new TarArchiveOutputStream( new FileOutputStream( file ) ) )
+    {
+      TarArchiveEntry entry = new TarArchiveEntry( "found" );
+      entry.setSize( data.length );
+      tos.putArchiveEntry( entry );
+      tos.write( data );
+      tos.closeArchiveEntry();
+    }
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.put( "written", data, false );
+    compfile.put( "next", new byte[1000], false );
+    compfile.close();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void channelReadsAnywhereInTheEntry() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( String name : new String[] { "found", "written" } )
+    {
+      SeekableByteChannel channel = compfile.openChannel( name );
+      assertEquals( data.length, channel.size() );
+      ByteBuffer bb = ByteBuffer.allocate( 1000 );
+      for ( long pos : new long[] { data.length - 100, 0L, 512L, 300001L } )
+      {
+        channel.position( pos );
+        bb.clear();
+        int n = channel.read( bb );
+        assertEquals( Math.min( 1000L, data.length - pos ), n );
+        assertArrayEquals( name + " at " + pos, Arrays.copyOfRange( data, (int)pos, (int)pos + n ),
+                           Arrays.copyOf( bb.array(), n ) );
+        assertEquals( pos + n, channel.position() );
+      }
+      // the next entry can't be reached
+      channel.position( data.length );
+      bb.clear();
+      assertEquals( -1, channel.read( bb ) );
+      channel.position( data.length + 10000L );
+      assertEquals( -1, channel.read( bb ) );
+      try
+      {
+        channel.write( ByteBuffer.allocate( 1 ) );
+        fail( "The channel should be read only" );
+      }
+      catch ( NonWritableChannelException ex )
+      {
+      }
+      channel.close();
+      assertFalse( channel.isOpen() );
+      try
+      {
+        channel.read( bb );
+        fail( "A closed channel should not read" );
+      }
+      catch ( ClosedChannelException ex )
+      {
+      }
+    }
+    compfile.close();
+  }
+
+  @Test
+  public void positionalReads() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( String name : new String[] { "found", "written" } )
+    {
+      ByteBuffer bb = ByteBuffer.allocate( 5000 );
+      bb.position( 10 );
+      assertEquals( 4990, compfile.read( name, 77777L, bb ) );
+      assertEquals( 5000, bb.position() );
+      assertArrayEquals( Arrays.copyOfRange( data, 77777, 77777 + 4990 ), Arrays.copyOfRange( bb.array(), 10, 5000 ) );
+
+      bb.clear();
+      assertEquals( 3, compfile.read( name, data.length - 3, bb ) );
+      assertArrayEquals( Arrays.copyOfRange( data, data.length - 3, data.length ), Arrays.copyOf( bb.array(), 3 ) );
+      bb.clear();
+      assertEquals( -1, compfile.read( name, data.length, bb ) );
+    }
+    compfile.close();
+  }
+}
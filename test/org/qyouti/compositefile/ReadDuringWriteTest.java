@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Entries can be read while a new one is being written, and the new one
+ * can't be seen until its stream is closed.
+ */
+public class ReadDuringWriteTest
+{
+  static final int ENTRIES = 20;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "readduringwrite.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void readersCarryOnWhileEntryIsWritten() throws Exception
+  {
+    final CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int i=0; i<ENTRIES; i++ )
+      compfile.put( "entry" + i, TestFiles.content( "entry" + i, 1 ), false );
+
+    byte[] data = TestFiles.content( "new", 1 );
+    OutputStream out = compfile.getOutputStream( "new", false );
+    out.write( data, 0, data.length / 2 );
+    out.flush();
+
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader = new Thread( () ->
+    {
+      try
+      {
+        for ( int i=0; i<ENTRIES; i++ )
+          try ( InputStream in = compfile.getInputStream( "entry" + i ) )
+          {
+            TestFiles.check( "entry" + i, TestFiles.readAll( in ) );
+          }
+        assertFalse( "The new entry should not be seen yet", compfile.exists( "new" ) );
+      }
+      catch ( Throwable th )
+      {
+        failure.compareAndSet( null, th );
+      }
+    } );
+    reader.start();
+    reader.join( 10000L );
+    assertFalse( "The reader should not wait for the writer", reader.isAlive() );
+    if ( failure.get() != null )
+      throw new AssertionError( "A read failed", failure.get() );
+    try
+    {
+      compfile.getInputStream( "new" );
+      fail( "The new entry should not be readable yet" );
+    }
+    catch ( IOException ex )
+    {
+    }
+
+    out.write( data, data.length / 2, data.length - data.length / 2 );
+    out.close();
+    assertTrue( compfile.exists( "new" ) );
+    TestFiles.check( "new", TestFiles.readAll( compfile.getInputStream( "new" ) ) );
+    compfile.close();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Staged output streams can be written by many threads at once, and
+ * entries whose streams are closed while another is being written go
+ * into the archive in the order they were closed.
+ */
+public class StagedWriterTest
+{
+  static final int THREADS = 8;
+  static final int ENTRIES = 50;
+
+  File dir;
+  File file;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+    file = new File( dir, "staged.tar" );
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void concurrentWritersAllSucceed() throws Exception
+  {
+    CompositeFile writing = CompositeFile.getCompositeFile( file );
+    writing.setStagingSize( 4096 );
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for ( int t=0; t<THREADS; t++ )
+    {
+      final int id = t;
+      threads.add( new Thread( () ->
+      {
+        try
+        {
+          for ( int i=0; i<ENTRIES; i++ )
+          {
+            String name = "t" + id + "/e" + i;
+            OutputStream out = writing.getStagedOutputStream( name, false );
+            out.write( TestFiles.content( name, 1 ) );
+            out.close();
+          }
+        }
+        catch ( Throwable th )
+        {
+          failure.compareAndSet( null, th );
+        }
+      } ) );
+    }
+    for ( Thread thread : threads )
+      thread.start();
+    for ( Thread thread : threads )
+      thread.join();
+    if ( failure.get() != null )
+      throw new AssertionError( "A staged write failed", failure.get() );
+    writing.close();
+
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    for ( int t=0; t<THREADS; t++ )
+      for ( int i=0; i<ENTRIES; i++ )
+      {
+        String name = "t" + t + "/e" + i;
+        TestFiles.check( name, TestFiles.readAll( compfile.getInputStream( name ) ) );
+      }
+    assertEquals( THREADS * ENTRIES, TestFiles.tarNames( file ).size() );
+    compfile.close();
+  }
+
+  @Test
+  public void waitingWritersGoInCloseOrder() throws Exception
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    OutputStream blocker = compfile.getOutputStream( "blocker", false );
+    blocker.write( TestFiles.content( "blocker", 1 ) );
+
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<String> expected = new ArrayList<>();
+    expected.add( "blocker" );
+    List<Thread> threads = new ArrayList<>();
+    for ( int t=0; t<THREADS; t++ )
+    {
+      String name = "staged" + t;
+      expected.add( name );
+      OutputStream out = compfile.getStagedOutputStream( name, false );
+      // bigger than the staging buffer so it goes through a temporary file
+      out.write( new byte[(t % 2) * 2 * compfile.getStagingSize() + 100] );
+      Thread thread = new Thread( () ->
+      {
+        try
+        {
+          out.close();
+        }
+        catch ( Throwable th )
+        {
+          failure.compareAndSet( null, th );
+        }
+      } );
+      threads.add( thread );
+      thread.start();
+      // the next close must not start until this one is waiting its turn
+      while ( thread.getState() != Thread.State.WAITING )
+      {
+        assertTrue( "Staged close should wait for the open writer", thread.isAlive() );
+        Thread.sleep( 1L );
+      }
+    }
+    blocker.close();
+    for ( Thread thread : threads )
+      thread.join();
+    if ( failure.get() != null )
+      throw new AssertionError( "A staged write failed", failure.get() );
+    compfile.close();
+
+    assertEquals( expected, TestFiles.tarNames( file ) );
+  }
+}
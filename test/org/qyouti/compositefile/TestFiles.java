@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+/**
+ * Helpers shared by the tests. Entry content is made from the entry name
+ * and a version number, which is stored in the first four bytes, so any
+ * content read back can be checked without knowing which version to
+ * expect.
+ */
+class TestFiles
+{
+  static File createTempDirectory() throws IOException
+  {
+    return Files.createTempDirectory( "compositefile" ).toFile();
+  }
+
+  static void delete( File file )
+  {
+    File[] children = file.listFiles();
+    if ( children != null )
+      for ( File child : children )
+        delete( child );
+    file.delete();
+  }
+
+  static byte[] content( String name, int version )
+  {
+    Random random = new Random( name.hashCode() * 31L + version );
+    byte[] b = new byte[4 + random.nextInt( 20000 )];
+    random.nextBytes( b );
+    ByteBuffer.wrap( b ).putInt( version );
+    return b;
+  }
+
+  static void check( String name, byte[] b )
+  {
+    if ( b.length < 4 )
+      throw new AssertionError( "Content too short for " + name );
+    int version = ByteBuffer.wrap( b ).getInt();
+    if ( !Arrays.equals( content( name, version ), b ) )
+      throw new AssertionError( "Bad content for " + name + " version " + version );
+  }
+
+  /**
+   * Reads the archive with an ordinary tar reader, as another tar tool
+   * would.
+   * 
+   * @return The names of the entries in the order they are in the file.
+   */
+  static List<String> tarNames( File file ) throws IOException
+  {
+    List<String> names = new ArrayList<>();
+    try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+    {
+      TarArchiveEntry entry;
+      while ( (entry = tis.getNextEntry()) != null )
+        names.add( entry.getName() );
+    }
+    return names;
+  }
+
+  static byte[] readAll( InputStream in ) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[4096];
+    int n;
+    while ( (n = in.read( b )) > 0 )
+      out.write( b, 0, n );
+    return out.toByteArray();
+  }
+}
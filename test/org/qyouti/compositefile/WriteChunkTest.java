@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.qyouti.compositefile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Gathering writes into large chunks does not change the layout of the
+ * archive.
+ */
+public class WriteChunkTest
+{
+  static final int[] CHUNK_SIZES = { 0, 512, 4096, 256 * 1024 };
+
+  File dir;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = TestFiles.createTempDirectory();
+  }
+
+  @After
+  public void tearDown()
+  {
+    TestFiles.delete( dir );
+  }
+
+  @Test
+  public void layoutIsTheSameForAnyChunkSize() throws Exception
+  {
+    long length = -1L;
+    for ( int chunksize : CHUNK_SIZES )
+    {
+      File file = new File( dir, "chunk" + chunksize + ".tar" );
+      write( file, chunksize );
+      if ( length < 0 )
+        length = file.length();
+      assertEquals( "length with chunk size " + chunksize, length, file.length() );
+
+      List<String> names = new ArrayList<>();
+      try ( TarArchiveInputStream tis = new TarArchiveInputStream( new FileInputStream( file ) ) )
+      {
+        TarArchiveEntry entry;
+        while ( (entry = tis.getNextEntry()) != null )
+        {
+          names.add( entry.getName() );
+          if ( entry.getName().equals( "big" ) )
+            assertArrayEquals( big(), TestFiles.readAll( tis ) );
+          else
+            TestFiles.check( entry.getName(), TestFiles.readAll( tis ) );
+        }
+      }
+      assertEquals( 23, names.size() );
+    }
+  }
+
+  void write( File file, int chunksize ) throws IOException
+  {
+    CompositeFile compfile = CompositeFile.getCompositeFile( file );
+    compfile.setWriteChunkSize( chunksize );
+    Random random = new Random( 0 );
+    for ( int i=0; i<10; i++ )
+      compfile.put( "small" + i, TestFiles.content( "small" + i, 1 ), false );
+    OutputStream out;
+    for ( int i=0; i<10; i++ )
+    {
+      // unknown size, written in odd pieces
+      byte[] data = TestFiles.content( "stream" + i, 1 );
+      out = compfile.getOutputStream( "stream" + i, false );
+      for ( int off=0, n; off < data.length; off += n )
+      {
+        n = Math.min( data.length - off, 1 + random.nextInt( 3000 ) );
+        out.write( data, off, n );
+      }
+      out.close();
+    }
+    byte[] data = big();
+    out = compfile.getOutputStream( "big", false );
+    for ( int off=0, n; off < data.length; off += n )
+    {
+      n = Math.min( data.length - off, 1 + random.nextInt( 100000 ) );
+      out.write( data, off, n );
+    }
+    out.close();
+    data = TestFiles.content( "known", 1 );
+    out = compfile.getOutputStream( "known", data.length, false );
+    out.write( data );
+    out.close();
+    compfile.setStagingSize( 0 );
+    data = TestFiles.content( "unstaged", 1 );
+    out = compfile.getOutputStream( "unstaged", false );
+    out.write( data );
+    out.close();
+    compfile.close();
+  }
+
+  /**
+   * An entry bigger than the largest chunk.
+   */
+  static byte[] big()
+  {
+    byte[] b = new byte[3 * 1024 * 1024 + 100];
+    new Random( 1 ).nextBytes( b );
+    return b;
+  }
+}